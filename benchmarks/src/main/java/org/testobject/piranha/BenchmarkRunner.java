@@ -0,0 +1,33 @@
+package org.testobject.piranha;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, for allocation rates, once per
+ * thread count. Further JMH options are passed on, e.g.
+ * <code>ProxyBenchmark -p mode=blocking -p payloadSize=1024</code>.
+ * Thread counts can be set with <code>-Dthreads=1,8,64</code>.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		for (String threads : System.getProperty("threads", "1,8,32").split(",")) {
+			ChainedOptionsBuilder options = new OptionsBuilder()
+					.parent(commandLine)
+					.threads(Integer.parseInt(threads.trim()))
+					.addProfiler(GCProfiler.class);
+			if (commandLine.getIncludes().isEmpty()) {
+				options.include(ProxyBenchmark.class.getSimpleName());
+			}
+			new Runner(options.build()).run();
+		}
+	}
+
+}
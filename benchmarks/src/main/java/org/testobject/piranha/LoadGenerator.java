@@ -0,0 +1,252 @@
+package org.testobject.piranha;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.testobject.piranha.LocalTestObjectCloud.Endpoint;
+import org.testobject.piranha.LocalTestObjectCloud.Latency;
+
+/**
+ * Drives many concurrent sessions through {@link TestObjectPiranha#open()},
+ * the local proxy and {@link TestObjectPiranha#close()} against a
+ * {@link LocalTestObjectCloud}, and reports threads, heap and latency
+ * percentiles per phase. Configured with system properties:
+ *
+ * <pre>
+ * -Dsessions=1000          concurrent sessions
+ * -Dcommands=20            JSON-RPC commands per session
+ * -DthinkTime=100          milliseconds between commands
+ * -Dmode=blocking          proxy mode: blocking, nonBlocking, streaming or async
+ * -Dshared=false           one shared proxy instead of one per session
+ * -DbootDelay=1000,5000    device boot median and p99 in milliseconds
+ * -DcommandLatency=20,200  command median and p99 in milliseconds
+ * -DresponseSize=1024      characters per command result
+ * -DsessionFailureRate=0   injected failures of session creation
+ * -DcommandFailureRate=0   injected failures of commands
+ * -DbaseUrl=               an already running cloud instead of the embedded one
+ * </pre>
+ */
+public class LoadGenerator {
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+	private final int sessions = Integer.getInteger("sessions", 1000);
+	private final int commands = Integer.getInteger("commands", 20);
+	private final long thinkTime = Long.getLong("thinkTime", 100);
+	private final String mode = System.getProperty("mode", "blocking");
+	private final boolean shared = Boolean.getBoolean("shared");
+
+	private final Phase open = new Phase("open", sessions);
+	private final Phase command = new Phase("command", sessions * commands);
+	private final Phase close = new Phase("close", sessions);
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger finished = new AtomicInteger();
+	private final AtomicLong peakHeap = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		LocalTestObjectCloud cloud = null;
+		String baseUrl = System.getProperty("baseUrl");
+		if (baseUrl == null) {
+			cloud = new LocalTestObjectCloud(0, settings(), Files.createTempDirectory("local-testobject-cloud"));
+			cloud.start();
+			baseUrl = cloud.getBaseUrl();
+		}
+
+		try {
+			new LoadGenerator().run(baseUrl);
+		} finally {
+			if (cloud != null) {
+				System.out.println(String.format("cloud: %d sessions left, %d keepalives, %d injected failures",
+						cloud.getSessionCount(), cloud.getRequestCount(Endpoint.KEEPALIVE),
+						cloud.getInjectedFailureCount(Endpoint.SESSION) + cloud.getInjectedFailureCount(Endpoint.COMMAND)));
+				cloud.stop();
+			}
+		}
+	}
+
+	private static LocalTestObjectCloud.Settings settings() {
+		LocalTestObjectCloud.Settings settings = new LocalTestObjectCloud.Settings();
+		settings.setBootDelay(latency("bootDelay", "1000,5000"));
+		settings.setLatency(Endpoint.SESSION, Latency.logNormal(50, 500));
+		settings.setLatency(Endpoint.COMMAND, latency("commandLatency", "20,200"));
+		settings.setLatency(Endpoint.KEEPALIVE, Latency.logNormal(10, 100));
+		settings.setLatency(Endpoint.DELETE, Latency.logNormal(20, 200));
+		settings.setCommandResponseSize(Integer.getInteger("responseSize", 1024));
+		settings.setFailureRate(Endpoint.SESSION, Double.parseDouble(System.getProperty("sessionFailureRate", "0")));
+		settings.setFailureRate(Endpoint.COMMAND, Double.parseDouble(System.getProperty("commandFailureRate", "0")));
+		return settings;
+	}
+
+	private static Latency latency(String property, String defaultValue) {
+		String[] value = System.getProperty(property, defaultValue).split(",");
+		return Latency.logNormal(Long.parseLong(value[0].trim()), Long.parseLong(value[1].trim()));
+	}
+
+	void run(final String baseUrl) throws InterruptedException {
+		final ProxyConfig config = new ProxyConfig();
+		config.setNonBlocking(mode.equals("nonBlocking") || mode.equals("async"));
+		config.setStreaming(mode.equals("streaming"));
+		config.setAsync(mode.equals("async"));
+		config.setShared(shared);
+
+		System.out.println(String.format("%d sessions x %d commands against %s, %s proxy%s", sessions, commands,
+				baseUrl, mode, shared ? ", shared" : ""));
+
+		ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("LoadGenerator monitor").setDaemon(true).build());
+		final long start = System.nanoTime();
+		monitor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				System.out.println(String.format("%5ds  active %5d  finished %5d  threads %5d  heap %5d MB",
+						TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), active.get(), finished.get(),
+						THREADS.getThreadCount(), heapMegabytes()));
+			}
+		}, 1, 5, TimeUnit.SECONDS);
+
+		ExecutorService executor = Executors.newFixedThreadPool(sessions, new ThreadFactoryBuilder()
+				.setNameFormat("LoadGenerator session-%d").setDaemon(true).build());
+		final CountDownLatch done = new CountDownLatch(sessions);
+		for (int i = 0; i < sessions; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						runSession(baseUrl, config);
+					} finally {
+						finished.incrementAndGet();
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+		executor.shutdown();
+		monitor.shutdown();
+
+		System.out.println(String.format("done in %d s, peak threads %d, peak heap %d MB",
+				TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), THREADS.getPeakThreadCount(),
+				peakHeap.get() / (1024 * 1024)));
+		System.out.println(Phase.HEADER);
+		System.out.println(open);
+		System.out.println(command);
+		System.out.println(close);
+	}
+
+	private void runSession(String baseUrl, ProxyConfig config) {
+		DesiredCapabilities capabilities = new DesiredCapabilities();
+		capabilities.setCapability("testobject_device", "Android_0_real");
+
+		TestObjectPiranha piranha = new TestObjectPiranha(baseUrl, capabilities);
+		piranha.setProxyConfig(config);
+		long started = System.nanoTime();
+		try {
+			piranha.open();
+			open.record(started);
+		} catch (RuntimeException e) {
+			open.failed();
+			return;
+		}
+
+		active.incrementAndGet();
+		String path = piranha.getBasePath().isEmpty() ? "/" : piranha.getBasePath();
+		LoopbackClient client = new LoopbackClient("localhost", piranha.getPort());
+		try {
+			for (int i = 0; i < commands; i++) {
+				Thread.sleep(thinkTime);
+				started = System.nanoTime();
+				try {
+					client.post(path, ProxyBenchmark.COMMAND, true);
+					command.record(started);
+				} catch (IOException e) {
+					command.failed();
+					closeQuietly(client);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			active.decrementAndGet();
+			closeQuietly(client);
+			started = System.nanoTime();
+			piranha.close();
+			close.record(started);
+		}
+	}
+
+	private static void closeQuietly(LoopbackClient client) {
+		try {
+			client.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	private long heapMegabytes() {
+		long used = MEMORY.getHeapMemoryUsage().getUsed();
+		long peak;
+		while (used > (peak = peakHeap.get()) && !peakHeap.compareAndSet(peak, used)) {
+		}
+		return used / (1024 * 1024);
+	}
+
+	/**
+	 * Latencies of one phase, kept in full for exact percentiles.
+	 */
+	static class Phase {
+		static final String HEADER = String.format("%-8s %8s %6s %9s %9s %9s %9s %9s", "phase", "count", "failed",
+				"p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+
+		private final String name;
+		private final long[] nanos;
+		private final AtomicInteger count = new AtomicInteger();
+		private final AtomicInteger failures = new AtomicInteger();
+
+		Phase(String name, int capacity) {
+			this.name = name;
+			this.nanos = new long[capacity];
+		}
+
+		void record(long startedNanos) {
+			int i = count.getAndIncrement();
+			if (i < nanos.length) {
+				nanos[i] = System.nanoTime() - startedNanos;
+			}
+		}
+
+		void failed() {
+			failures.incrementAndGet();
+		}
+
+		@Override
+		public String toString() {
+			long[] sorted = Arrays.copyOf(nanos, Math.min(count.get(), nanos.length));
+			Arrays.sort(sorted);
+			return String.format("%-8s %8d %6d %9.1f %9.1f %9.1f %9.1f %9.1f", name, sorted.length, failures.get(),
+					percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+					percentile(sorted, 0.999), percentile(sorted, 1));
+		}
+
+		private static double percentile(long[] sorted, double p) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			int i = (int) Math.ceil(p * sorted.length) - 1;
+			return sorted[Math.max(0, i)] / 1e6;
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package org.testobject.piranha;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal HTTP/1.1 client for the benchmarks, so that the numbers are
+ * dominated by the server under test and not by a client library. Response
+ * bodies are read into a reused buffer and discarded.
+ */
+class LoopbackClient implements Closeable {
+
+	private final String host;
+	private final int port;
+	private final byte[] buffer = new byte[64 * 1024];
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+
+	LoopbackClient(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Sends a POST and reads the whole response.
+	 *
+	 * @param keepAlive
+	 *            reuse the connection for the next request, otherwise it is
+	 *            closed after the response
+	 * @return the number of body bytes received
+	 */
+	long post(String path, byte[] body, boolean keepAlive) throws IOException {
+		if (socket == null) {
+			socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			in = new BufferedInputStream(socket.getInputStream(), buffer.length);
+			out = socket.getOutputStream();
+		}
+
+		String head = "POST " + path + " HTTP/1.1\r\nHost: " + host + ":" + port
+				+ "\r\nContent-Type: application/json; charset=utf-8\r\nContent-Length: " + body.length
+				+ (keepAlive ? "" : "\r\nConnection: close") + "\r\n\r\n";
+		out.write(head.getBytes(StandardCharsets.US_ASCII));
+		out.write(body);
+		out.flush();
+
+		long received = readResponse();
+		if (!keepAlive) {
+			close();
+		}
+		return received;
+	}
+
+	private long readResponse() throws IOException {
+		String statusLine = readLine();
+		if (!statusLine.startsWith("HTTP/1.1 200")) {
+			throw new IOException("Unexpected response: " + statusLine);
+		}
+
+		long contentLength = -1;
+		boolean chunked = false;
+		String line;
+		while (!(line = readLine()).isEmpty()) {
+			int colon = line.indexOf(':');
+			String name = line.substring(0, colon).trim();
+			if (name.equalsIgnoreCase("content-length")) {
+				contentLength = Long.parseLong(line.substring(colon + 1).trim());
+			} else if (name.equalsIgnoreCase("transfer-encoding")) {
+				chunked = line.substring(colon + 1).trim().equalsIgnoreCase("chunked");
+			}
+		}
+
+		if (!chunked) {
+			skip(contentLength);
+			return contentLength;
+		}
+		long received = 0;
+		long size;
+		while ((size = Long.parseLong(readLine().trim(), 16)) > 0) {
+			skip(size);
+			readLine();
+			received += size;
+		}
+		readLine();
+		return received;
+	}
+
+	private void skip(long length) throws IOException {
+		while (length > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+			if (read < 0) {
+				throw new EOFException();
+			}
+			length -= read;
+		}
+	}
+
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				throw new EOFException();
+			}
+			if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		return line.toString();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (socket != null) {
+			socket.close();
+			socket = null;
+		}
+	}
+
+}
@@ -0,0 +1,119 @@
+package org.testobject.piranha;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trip of one JSON-RPC command through a local {@link Proxy} to an
+ * in-process upstream stub, measured from a loopback client.
+ * <p>
+ * The command is a typical small request, the response has
+ * <code>payloadSize</code> bytes, from a short reply up to a screenshot.
+ * Concurrency is set with JMH's <code>-t</code> option, or run
+ * {@link BenchmarkRunner} for the usual thread counts.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProxyBenchmark {
+
+	static final byte[] COMMAND = ("{\"jsonrpc\":\"2.0\",\"method\":\"findElement\",\"params\":"
+			+ "{\"using\":\"id\",\"value\":\"com.example.app:id/login_button\"},\"id\":42}")
+			.getBytes(StandardCharsets.UTF_8);
+
+	@State(Scope.Benchmark)
+	public static class Servers {
+
+		/**
+		 * 1 KB reply, 64 KB page source, 1 MB and 5 MB screenshots.
+		 */
+		@Param({ "1024", "65536", "1048576", "5242880" })
+		public int payloadSize;
+
+		/**
+		 * Proxy configuration, see {@link ProxyConfig}.
+		 */
+		@Param({ "blocking", "nonBlocking", "streaming", "async" })
+		public String mode;
+
+		NanoHTTPD upstream;
+		Proxy proxy;
+
+		@Setup(Level.Trial)
+		public void start() throws IOException {
+			final byte[] payload = new byte[payloadSize];
+			Arrays.fill(payload, (byte) 'a');
+
+			upstream = new NanoHTTPD(0) {
+				@Override
+				public Response serve(IHTTPSession session) {
+					session.readBody();
+					return new Response(Response.Status.OK, "application/json-rpc", new ByteArrayInputStream(payload),
+							payload.length);
+				}
+			};
+			upstream.start();
+
+			ProxyConfig config = new ProxyConfig();
+			config.setNonBlocking(mode.equals("nonBlocking") || mode.equals("async"));
+			config.setStreaming(mode.equals("streaming"));
+			config.setAsync(mode.equals("async"));
+			proxy = new Proxy(0, "http://localhost:" + upstream.getListeningPort(), "benchmark", config);
+			proxy.start();
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() {
+			proxy.stop();
+			upstream.stop();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+
+		/**
+		 * Whether a connection is reused, as the Appium client does, or opened
+		 * per command.
+		 */
+		@Param({ "true", "false" })
+		public boolean keepAlive;
+
+		LoopbackClient client;
+
+		@Setup(Level.Trial)
+		public void connect(Servers servers) {
+			client = new LoopbackClient("localhost", servers.proxy.getListeningPort());
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			client.close();
+		}
+	}
+
+	@Benchmark
+	public long roundTrip(Client client) throws IOException {
+		return client.client.post("/", COMMAND, client.keepAlive);
+	}
+
+}
@@ -0,0 +1,140 @@
+package org.testobject.piranha;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.testobject.piranha.NanoHTTPD.CookieHandler;
+import org.testobject.piranha.NanoHTTPD.DefaultTempFileManager;
+import org.testobject.piranha.NanoHTTPD.HTTPSession;
+import org.testobject.piranha.NanoHTTPD.ResponseException;
+
+/**
+ * The parsing steps {@link NanoHTTPD} runs on every incoming request, on
+ * requests as sent by the Appium and Selenium clients. Run with
+ * <code>-prof gc</code> for the allocations per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParsingBenchmark {
+
+	static final String SESSION = "7f3c9a52-1b7e-4c0e-9d3a-6a1f0c2e8b41";
+
+	static final Map<String, String> REQUESTS = new HashMap<String, String>();
+
+	static {
+		REQUESTS.put("findElement", request("POST /wd/hub/session/" + SESSION + "/element HTTP/1.1\r\n"
+				+ "Content-Type: application/json; charset=utf-8\r\n"
+				+ "Host: localhost:4723\r\n"
+				+ "Connection: Keep-Alive\r\n"
+				+ "User-Agent: Apache-HttpClient/4.5.1 (Java/1.8.0_66)\r\n"
+				+ "Accept-Encoding: gzip,deflate\r\n",
+				"{\"using\":\"id\",\"value\":\"com.example.app:id/login_button\"}"));
+		REQUESTS.put("screenshot", request("GET /wd/hub/session/" + SESSION + "/screenshot HTTP/1.1\r\n"
+				+ "Accept: application/json, image/png\r\n"
+				+ "Cache-Control: no-cache\r\n"
+				+ "Host: localhost:4723\r\n"
+				+ "Connection: Keep-Alive\r\n"
+				+ "User-Agent: selenium/2.53.0 (java linux)\r\n"
+				+ "Accept-Encoding: gzip,deflate\r\n", ""));
+		REQUESTS.put("newSession", request("POST /wd/hub/session?testobject_api_key=2B1E2F9C0C8D4A6F"
+				+ "&testobject_test_name=Login%20flow%20%231&testobject_suite_name=Smoke+tests HTTP/1.1\r\n"
+				+ "Content-Type: application/json; charset=utf-8\r\n"
+				+ "Host: app.testobject.com\r\n"
+				+ "Connection: Keep-Alive\r\n"
+				+ "User-Agent: Apache-HttpClient/4.5.1 (Java/1.8.0_66)\r\n"
+				+ "Accept-Encoding: gzip,deflate\r\n"
+				+ "Cookie: JSESSIONID=node01a8h3k2m5p7q9; AWSELB=3F1D7B5A9C2E4F60; locale=en_US\r\n",
+				"{\"desiredCapabilities\":{\"testobject_device\":\"Samsung_Galaxy_S5_real\","
+						+ "\"testobject_appium_version\":\"1.5.2\",\"platformName\":\"Android\"}}"));
+	}
+
+	private static String request(String head, String body) {
+		if (!body.isEmpty()) {
+			head += "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n";
+		}
+		return head + "\r\n" + body;
+	}
+
+	@Param({ "findElement", "screenshot", "newSession" })
+	public String request;
+
+	byte[] bytes;
+	int headerEnd;
+	String query;
+	NanoHTTPD server;
+	HTTPSession session;
+	Map<String, String> headers;
+
+	@Setup
+	public void setUp() throws ResponseException {
+		bytes = REQUESTS.get(request).getBytes(StandardCharsets.UTF_8);
+		headerEnd = NanoHTTPD.findHeaderEnd(bytes, bytes.length);
+
+		server = new NanoHTTPD(0) {
+			@Override
+			public Response serve(IHTTPSession session) {
+				return null;
+			}
+		};
+		session = server.new HTTPSession(new DefaultTempFileManager(), new ByteArrayInputStream(new byte[0]),
+				new ByteArrayOutputStream());
+		System.arraycopy(bytes, 0, session.buf, 0, bytes.length);
+		session.decodeHeader(headerEnd);
+		query = session.getQueryParameterString();
+		headers = session.getHeaders();
+	}
+
+	@Benchmark
+	public int findHeaderEnd() {
+		return NanoHTTPD.findHeaderEnd(bytes, bytes.length);
+	}
+
+	@Benchmark
+	public HTTPSession decodeHeader() throws ResponseException {
+		session.decodeHeader(headerEnd);
+		return session;
+	}
+
+	@Benchmark
+	public String decodeHeaderAndGetHeader() throws ResponseException {
+		session.decodeHeader(headerEnd);
+		return session.getHeader("Content-Type");
+	}
+
+	@Benchmark
+	public String decodePercent() {
+		return server.decodePercent(query != null ? query : session.getUri());
+	}
+
+	@Benchmark
+	public Map<String, String> decodeParms() {
+		Map<String, String> parms = new HashMap<String, String>();
+		session.decodeParms(query, parms);
+		return parms;
+	}
+
+	@Benchmark
+	public CookieHandler cookieHandler() {
+		return server.new CookieHandler(headers);
+	}
+
+}
@@ -0,0 +1,103 @@
+package org.testobject.piranha;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.testobject.piranha.NanoHTTPD.Response;
+
+/**
+ * Rendering and writing of responses as done by {@link Response#send}, into a
+ * sink so that only the encoding is measured. Run with <code>-prof gc</code>
+ * for the allocations per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseEncodingBenchmark {
+
+	static final String MIME_JSON = "application/json; charset=utf-8";
+
+	/**
+	 * A short JSON-RPC reply and a page source.
+	 */
+	@Param({ "128", "65536" })
+	public int payloadSize;
+
+	byte[] payload;
+	String json;
+	Sink sink = new Sink();
+
+	@Setup
+	public void setUp() {
+		payload = new byte[payloadSize];
+		Arrays.fill(payload, (byte) 'a');
+		json = new String(payload);
+	}
+
+	@Benchmark
+	public byte[] dateHeader() {
+		return NanoHTTPD.ResponseWriter.currentDate();
+	}
+
+	/**
+	 * What {@link #dateHeader()} costs once per second.
+	 */
+	@Benchmark
+	public Object formatDateHeader() {
+		return new NanoHTTPD.ResponseWriter.DateHeader(System.currentTimeMillis() / 1000);
+	}
+
+	@Benchmark
+	public long sendText() {
+		Response response = new Response(Response.Status.OK, MIME_JSON, json);
+		response.send(sink);
+		return sink.count;
+	}
+
+	@Benchmark
+	public long sendAsFixedLength() {
+		Response response = new Response(Response.Status.OK, MIME_JSON, new ByteArrayInputStream(payload),
+				payload.length);
+		response.send(sink);
+		return sink.count;
+	}
+
+	@Benchmark
+	public long sendAsChunked() {
+		Response response = new Response(Response.Status.OK, MIME_JSON, new ByteArrayInputStream(payload));
+		response.setChunkedTransfer(true);
+		response.send(sink);
+		return sink.count;
+	}
+
+	static final class Sink extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+}
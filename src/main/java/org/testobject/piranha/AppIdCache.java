@@ -0,0 +1,166 @@
+package org.testobject.piranha;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.log4j.Logger;
+
+import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * App IDs of uploaded binaries by MD5 hash, so that uploading an unchanged
+ * build needs no network call at all.
+ * <p>
+ * IDs are scoped to the server and API key, expire after a TTL and are kept
+ * in a {@link PersistentMap} shared by all processes using the same file. A
+ * cached ID is returned right away and checked against the server once per
+ * JVM in the background; if the server no longer knows the app the entry is
+ * dropped, so the next call uploads it again.
+ */
+public class AppIdCache {
+
+	public static final long DEFAULT_TTL_MILLIS = 24 * 60 * 60 * 1000;
+
+	private static AppIdCache shared;
+
+	private final Logger logger = Logger.getLogger(AppIdCache.class);
+
+	private final PersistentMap store;
+	private final long ttlMillis;
+	private final Set<String> validated = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ExecutorService validator = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("Piranha app id validator").setDaemon(true).build());
+	private volatile Map<String, String> entries;
+
+	public AppIdCache(Path file, long ttlMillis) {
+		this.store = new PersistentMap(file);
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * The cache in <code>~/.testobject/app-ids.properties</code>.
+	 */
+	public static synchronized AppIdCache shared() {
+		if (shared == null) {
+			shared = new AppIdCache(Paths.get(System.getProperty("user.home"), ".testobject", "app-ids.properties"),
+					DEFAULT_TTL_MILLIS);
+		}
+		return shared;
+	}
+
+	/**
+	 * @return the cached app ID, or <code>null</code> if there is none or it
+	 *         expired.
+	 */
+	public Integer get(String baseUrl, String apiKey, String md5) {
+		String key = key(baseUrl, apiKey, md5);
+		Integer appId = lookup(entries(false), key);
+		if (appId == null) {
+			// another process may have uploaded it since we last looked
+			appId = lookup(entries(true), key);
+		}
+		return appId;
+	}
+
+	public void put(String baseUrl, String apiKey, String md5, int appId) {
+		String key = key(baseUrl, apiKey, md5);
+		validated.add(key);
+		update(Collections.singletonMap(key, appId + "," + System.currentTimeMillis()),
+				Collections.<String> emptyList());
+	}
+
+	/**
+	 * Checks a cached ID in the background, once per JVM.
+	 *
+	 * @param lookup
+	 *            asks the server for the app ID, <code>null</code> if it
+	 *            does not know the app
+	 */
+	public void validateLater(final String baseUrl, final String apiKey, final String md5,
+			final Callable<Integer> lookup) {
+		final String key = key(baseUrl, apiKey, md5);
+		if (!validated.add(key)) {
+			return;
+		}
+		validator.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Integer appId = lookup.call();
+					if (appId == null) {
+						update(Collections.<String, String> emptyMap(), Collections.singletonList(key));
+					} else if (!appId.equals(lookup(entries(false), key))) {
+						put(baseUrl, apiKey, md5, appId);
+					}
+				} catch (Exception e) {
+					validated.remove(key);
+					logger.warn(String.format("Failed to validate cached app id for %s. Error: %s", md5, e));
+				}
+			}
+		});
+	}
+
+	private static String key(String baseUrl, String apiKey, String md5) {
+		// the API key is only kept as a hash
+		return DigestUtils.sha256Hex(baseUrl + '\n' + apiKey).substring(0, 16) + '.' + md5;
+	}
+
+	private Integer lookup(Map<String, String> entries, String key) {
+		String entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		int separator = entry.indexOf(',');
+		try {
+			long storedAt = Long.parseLong(entry.substring(separator + 1));
+			if (System.currentTimeMillis() - storedAt > ttlMillis) {
+				return null;
+			}
+			return Integer.valueOf(entry.substring(0, separator));
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	private Map<String, String> entries(boolean reload) {
+		Map<String, String> current = entries;
+		if (current == null || reload) {
+			try {
+				current = store.load();
+			} catch (IOException | IllegalArgumentException e) {
+				logger.warn(String.format("Ignoring unreadable app id cache %s. Error: %s", store.getFile(), e));
+				current = Collections.emptyMap();
+			}
+			entries = current;
+		}
+		return current;
+	}
+
+	private void update(Map<String, String> changes, Collection<String> removals) {
+		try {
+			// expired entries are dropped on the way
+			List<String> expired = new ArrayList<String>(removals);
+			for (Map.Entry<String, String> entry : entries(false).entrySet()) {
+				if (lookup(entries, entry.getKey()) == null) {
+					expired.add(entry.getKey());
+				}
+			}
+			entries = store.update(changes, expired);
+		} catch (IOException e) {
+			logger.warn(String.format("Failed to update app id cache %s. Error: %s", store.getFile(), e));
+		}
+	}
+
+}
@@ -0,0 +1,500 @@
+package org.testobject.piranha;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Uploads an app in chunks that are sent in parallel, retried on their own
+ * and checkpointed locally, so an interrupted upload resumes where it
+ * stopped.
+ * <p>
+ * The protocol, relative to the storage URL:
+ * <ol>
+ * <li><code>POST upload/chunked</code> with the <code>App-Identifier</code>,
+ * optional <code>App-Type</code> and <code>Upload-Length</code> headers
+ * returns an upload ID.</li>
+ * <li><code>PUT upload/chunked/{uploadId}</code> with a
+ * <code>Content-Range: bytes first-last/length</code> header stores a chunk.
+ * Chunks may arrive in any order and more than once.</li>
+ * <li><code>POST upload/chunked/{uploadId}/complete</code> returns the app ID
+ * once all bytes arrived and their MD5 matches the identifier.</li>
+ * </ol>
+ * A <code>404</code> for an upload ID means the server dropped the upload; it
+ * is then started over once, as is a resumed upload answered with
+ * <code>401</code> or <code>403</code>. Chunks are retried on connection errors,
+ * <code>5xx</code> and <code>429</code>; other statuses fail the upload
+ * right away. The tests contain a local server, <code>LocalStorageServer</code>.
+ * <p>
+ * Each upload has its own checkpoint, named by MD5 hash and upload ID, and
+ * is only resumed against the same storage URL and API key. An
+ * upload claims a checkpoint with a lock on its <code>.owner</code> file, so
+ * concurrent uploads of the same file, in this or other JVMs, each resume or
+ * start their own upload instead of sharing one.
+ */
+public class ChunkedUpload {
+
+	static final String PATH = "upload/chunked";
+
+	private static final String UPLOAD_ID = "uploadId";
+	private static final String STORAGE_URL = "storageUrl";
+	private static final String API_KEY = "apiKey";
+	private static final String LENGTH = "length";
+	private static final String CHUNK_SIZE = "chunkSize";
+	private static final String CHUNK_PREFIX = "chunk.";
+	private static final String PROPERTIES = ".properties";
+
+	private final Logger logger = Logger.getLogger(ChunkedUpload.class);
+
+	private final Settings settings;
+
+	public ChunkedUpload(Settings settings) {
+		this.settings = settings;
+	}
+
+	public Settings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * @param call
+	 *            counts the bytes sent and the chunks retried
+	 */
+	int upload(String apiKey, File appFile, boolean isFramework, String storageUrl, String md5, ControlPlaneCall call)
+			throws IOException {
+		Path file = appFile.toPath();
+		long length = Files.size(file);
+
+		Checkpoint checkpoint = resume(apiKey, storageUrl, md5, length);
+		boolean resumed = checkpoint != null;
+		try {
+			if (checkpoint == null) {
+				checkpoint = begin(apiKey, isFramework, storageUrl, md5, length);
+			}
+			try {
+				return attempt(apiKey, file, length, storageUrl, checkpoint, call);
+			} catch (HttpStatusException e) {
+				if (!(e instanceof UnknownUploadException) && !(resumed && isRejected(e))) {
+					throw e;
+				}
+				logger.info(String.format("Server dropped upload of %s (%s), starting over", appFile, e.getMessage()));
+				checkpoint.delete();
+				checkpoint.close();
+				checkpoint = null;
+				checkpoint = begin(apiKey, isFramework, storageUrl, md5, length);
+				call.retried();
+				return attempt(apiKey, file, length, storageUrl, checkpoint, call);
+			}
+		} finally {
+			if (checkpoint != null) {
+				checkpoint.close();
+			}
+		}
+	}
+
+	/**
+	 * @return a checkpoint of an earlier upload of the file to the same
+	 *         storage and account that no one else is resuming, claimed, or
+	 *         null if there is none
+	 */
+	private Checkpoint resume(String apiKey, String storageUrl, String md5, long length) throws IOException {
+		if (!Files.isDirectory(settings.checkpointDirectory)) {
+			return null;
+		}
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(settings.checkpointDirectory, md5 + ".*"
+				+ PROPERTIES)) {
+			for (Path path : stream) {
+				files.add(path);
+			}
+		}
+
+		for (Path path : files) {
+			Checkpoint checkpoint = Checkpoint.claim(path);
+			if (checkpoint == null) {
+				continue;
+			}
+			Map<String, String> state = checkpoint.map.load();
+			if (state.containsKey(UPLOAD_ID)
+					&& (!storageUrl.equals(state.get(STORAGE_URL)) || !apiKeyHash(apiKey).equals(state.get(API_KEY)))) {
+				// belongs to another storage or account using the same directory
+				checkpoint.close();
+				continue;
+			}
+			if (state.containsKey(UPLOAD_ID) && String.valueOf(length).equals(state.get(LENGTH))
+					&& String.valueOf(settings.chunkSize).equals(state.get(CHUNK_SIZE))) {
+				return checkpoint;
+			}
+			// another chunk size or left over from a completed upload, cannot be resumed
+			checkpoint.delete();
+			checkpoint.close();
+		}
+		return null;
+	}
+
+	/**
+	 * Starts an upload and claims a new checkpoint for it.
+	 */
+	private Checkpoint begin(String apiKey, boolean isFramework, String storageUrl, String md5, long length)
+			throws IOException {
+		String uploadId = start(apiKey, isFramework, storageUrl, md5, length);
+		Checkpoint checkpoint = Checkpoint.claim(settings.checkpointDirectory.resolve(md5 + "."
+				+ uploadId.replaceAll("[^A-Za-z0-9_-]", "_") + PROPERTIES));
+		if (checkpoint == null) {
+			throw new IOException("Checkpoint of new upload " + uploadId + " is in use");
+		}
+		Map<String, String> started = new HashMap<String, String>();
+		started.put(UPLOAD_ID, uploadId);
+		started.put(STORAGE_URL, storageUrl);
+		started.put(API_KEY, apiKeyHash(apiKey));
+		started.put(LENGTH, String.valueOf(length));
+		started.put(CHUNK_SIZE, String.valueOf(settings.chunkSize));
+		checkpoint.map.update(started, Collections.<String> emptyList());
+		return checkpoint;
+	}
+
+	private int attempt(String apiKey, Path file, long length, String storageUrl, Checkpoint checkpoint,
+			ControlPlaneCall call) throws IOException {
+		Map<String, String> state = checkpoint.map.load();
+		String uploadId = state.get(UPLOAD_ID);
+
+		String uploadUrl = storageUrl + "/" + PATH + "/" + uploadId;
+		int chunks = (int) ((length + settings.chunkSize - 1) / settings.chunkSize);
+		List<Integer> pending = new ArrayList<Integer>();
+		for (int i = 0; i < chunks; i++) {
+			if (!state.containsKey(CHUNK_PREFIX + i)) {
+				pending.add(i);
+			}
+		}
+		logger.info(String.format("Uploading %d of %d chunks of %s as %s", pending.size(), chunks, file, uploadId));
+
+		sendChunks(apiKey, file, length, uploadUrl, checkpoint.map, pending, call);
+
+		try (CloseableHttpResponse response = execute(apiKey, new HttpPost(uploadUrl + "/complete"))) {
+			call.status(response.getStatusLine().getStatusCode());
+			String appId = body(response, uploadId);
+			checkpoint.delete();
+			return Integer.valueOf(appId.trim());
+		}
+	}
+
+	private String start(String apiKey, boolean isFramework, String storageUrl, String md5, long length)
+			throws IOException {
+		HttpPost post = new HttpPost(storageUrl + "/" + PATH);
+		post.setHeader("App-Identifier", md5);
+		post.setHeader("Upload-Length", String.valueOf(length));
+		if (isFramework) {
+			post.setHeader("App-Type", "framework");
+		}
+		try (CloseableHttpResponse response = execute(apiKey, post)) {
+			return body(response, null).trim();
+		}
+	}
+
+	private void sendChunks(final String apiKey, final Path file, final long length, final String uploadUrl,
+			final PersistentMap checkpoint, List<Integer> pending, final ControlPlaneCall call) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(settings.parallelism, new ThreadFactoryBuilder()
+				.setNameFormat("Piranha upload-%d").setDaemon(true).build());
+		// once a chunk failed for good, the upload fails and further chunks are not started
+		final AtomicBoolean failed = new AtomicBoolean();
+		try {
+			List<Future<?>> sent = new ArrayList<Future<?>>();
+			for (final int chunk : pending) {
+				sent.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						if (failed.get()) {
+							return null;
+						}
+						try {
+							sendChunk(apiKey, file, length, uploadUrl, chunk, call);
+						} catch (Exception e) {
+							failed.set(true);
+							throw e;
+						}
+						checkpoint.update(Collections.singletonMap(CHUNK_PREFIX + chunk, "done"),
+								Collections.<String> emptyList());
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : sent) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					throw new IOException(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			awaitTermination(executor);
+		}
+	}
+
+	/**
+	 * Waits for chunks still being sent, so that no request of a failed
+	 * upload reaches the server after it returned.
+	 */
+	private void awaitTermination(ExecutorService executor) {
+		try {
+			if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				logger.warn("Chunks of a failed upload are still being sent");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void sendChunk(String apiKey, Path file, long length, String uploadUrl, int chunk, ControlPlaneCall call)
+			throws IOException, InterruptedException {
+		long first = chunk * settings.chunkSize;
+		long size = Math.min(settings.chunkSize, length - first);
+
+		for (int attempt = 1;; attempt++) {
+			HttpPut put = new HttpPut(uploadUrl);
+			put.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + first + "-" + (first + size - 1) + "/" + length);
+			put.setEntity(new FileChannelEntity(file, first, size, ContentType.APPLICATION_OCTET_STREAM));
+			try (CloseableHttpResponse response = execute(apiKey, put)) {
+				call.sent(size);
+				body(response, uploadUrl);
+				return;
+			} catch (UnknownUploadException e) {
+				throw e;
+			} catch (IOException e) {
+				if (!isRetryable(e) || attempt >= settings.maxAttempts) {
+					throw e;
+				}
+				logger.warn(String.format("Chunk %d of %s failed (try #%d), retrying. Error: %s", chunk, file,
+						attempt, e));
+				call.retried();
+				Thread.sleep(settings.retryDelayMillis * attempt);
+			}
+		}
+	}
+
+	/**
+	 * Identifies the account of a checkpoint without storing the key.
+	 */
+	private static String apiKeyHash(String apiKey) {
+		return DigestUtils.sha256Hex(apiKey).substring(0, 16);
+	}
+
+	/**
+	 * A resumed upload the server no longer accepts, e.g. after the upload
+	 * expired or the key was regenerated.
+	 */
+	private static boolean isRejected(HttpStatusException e) {
+		return e.getStatus() == 401 || e.getStatus() == 403 || e.getStatus() == 404;
+	}
+
+	/**
+	 * Connection errors, server errors and throttling may pass, other
+	 * statuses will fail again.
+	 */
+	private static boolean isRetryable(IOException e) {
+		if (e instanceof HttpStatusException) {
+			int status = ((HttpStatusException) e).getStatus();
+			return status >= 500 || status == 429;
+		}
+		return true;
+	}
+
+	private static CloseableHttpResponse execute(String apiKey, HttpRequestBase request) throws IOException {
+		request.setHeader(HttpHeaders.AUTHORIZATION, ClientRegistry.basicAuthorization(apiKey));
+		return ClientRegistry.shared().httpClient().execute(request);
+	}
+
+	/**
+	 * @param upload
+	 *            the upload the request belongs to, if any
+	 */
+	private static String body(CloseableHttpResponse response, String upload) throws IOException {
+		String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(),
+				StandardCharsets.UTF_8);
+		int status = response.getStatusLine().getStatusCode();
+		if (status == 404 && upload != null) {
+			throw new UnknownUploadException(upload);
+		}
+		if (status < 200 || status >= 300) {
+			throw new HttpStatusException(status, body);
+		}
+		return body;
+	}
+
+	private static class UnknownUploadException extends HttpStatusException {
+		private static final long serialVersionUID = 1L;
+
+		UnknownUploadException(String upload) {
+			super(404, "Unknown upload: " + upload);
+		}
+	}
+
+	static class HttpStatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final int status;
+
+		HttpStatusException(int status, String body) {
+			super("HTTP " + status + ": " + body);
+			this.status = status;
+		}
+
+		int getStatus() {
+			return status;
+		}
+	}
+
+	/**
+	 * The checkpoint of one upload, claimed by holding an exclusive lock on
+	 * its <code>.owner</code> file until closed.
+	 */
+	private static final class Checkpoint implements Closeable {
+		private final PersistentMap map;
+		private final Path owner;
+		private final FileChannel channel;
+		private final FileLock lock;
+
+		private Checkpoint(PersistentMap map, Path owner, FileChannel channel, FileLock lock) {
+			this.map = map;
+			this.owner = owner;
+			this.channel = channel;
+			this.lock = lock;
+		}
+
+		/**
+		 * @return the claimed checkpoint, or null if another upload holds it
+		 */
+		static Checkpoint claim(Path file) throws IOException {
+			String name = file.getFileName().toString();
+			Path owner = file.resolveSibling(name.substring(0, name.length() - PROPERTIES.length()) + ".owner");
+			Files.createDirectories(file.getParent());
+			FileChannel channel = FileChannel.open(owner, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock lock;
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				// held by another upload in this JVM
+				lock = null;
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			if (lock == null) {
+				channel.close();
+				return null;
+			}
+			return new Checkpoint(new PersistentMap(file), owner, channel, lock);
+		}
+
+		/**
+		 * Removes the checkpoint once the upload completed or cannot be
+		 * resumed. The claim is kept until closed.
+		 */
+		void delete() throws IOException {
+			map.delete();
+		}
+
+		@Override
+		public void close() throws IOException {
+			boolean deleted = !Files.exists(map.getFile());
+			try {
+				lock.release();
+			} finally {
+				channel.close();
+			}
+			if (deleted) {
+				Files.deleteIfExists(owner);
+			}
+		}
+	}
+
+	/**
+	 * Chunk size, parallelism and retries of an upload.
+	 */
+	public static class Settings {
+		private long chunkSize = 8 * 1024 * 1024;
+		private int parallelism = 4;
+		private int maxAttempts = 5;
+		private long retryDelayMillis = 1000;
+		private Path checkpointDirectory = Paths.get(System.getProperty("user.home"), ".testobject", "uploads");
+
+		public long getChunkSize() {
+			return chunkSize;
+		}
+
+		public void setChunkSize(long chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+
+		/**
+		 * Number of chunks sent at the same time.
+		 */
+		public void setParallelism(int parallelism) {
+			this.parallelism = parallelism;
+		}
+
+		/**
+		 * Attempts per chunk before the upload fails. The checkpoint is kept,
+		 * so the next upload of the same file resumes. Statuses other than
+		 * <code>5xx</code> and <code>429</code> are not retried.
+		 */
+		public void setMaxAttempts(int maxAttempts) {
+			this.maxAttempts = maxAttempts;
+		}
+
+		/**
+		 * Delay before the first retry of a chunk, growing linearly.
+		 */
+		public void setRetryDelayMillis(long retryDelayMillis) {
+			this.retryDelayMillis = retryDelayMillis;
+		}
+
+		/**
+		 * Where the progress of unfinished uploads is kept, by MD5 hash and
+		 * upload ID.
+		 */
+		public void setCheckpointDirectory(Path checkpointDirectory) {
+			this.checkpointDirectory = checkpointDirectory;
+		}
+	}
+
+}
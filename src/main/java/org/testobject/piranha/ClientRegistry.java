@@ -0,0 +1,184 @@
+package org.testobject.piranha;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
+import org.glassfish.jersey.client.authentication.HttpAuthenticationFeature;
+
+import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Jersey clients for the TestObject REST API, created once per base URL and
+ * credentials and reused by all callers. All clients share one pool of
+ * connections, idle connections are closed in the background.
+ * <p>
+ * Clients are thread-safe and owned by the registry, callers must not close
+ * them. Only {@link #loginClient(String, String, String)} keeps cookies.
+ */
+public class ClientRegistry implements Closeable {
+
+	public static final String API_USER = "testobject-api";
+
+	private static final int TIMEOUT_MILLIS = 10 * 60 * 1000; // 10 minutes
+
+	private static ClientRegistry shared;
+
+	private final ConcurrentMap<String, Client> clients = new ConcurrentHashMap<String, Client>();
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final ScheduledExecutorService evictor;
+	private CloseableHttpClient httpClient;
+
+	public ClientRegistry(int maxConnections, final long idleTimeoutMillis) {
+		this.connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnections);
+		connectionManager.setValidateAfterInactivity(2 * 1000);
+
+		this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("Piranha client evictor").setDaemon(true).build());
+		long period = Math.max(1000, idleTimeoutMillis / 2);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The registry used by {@link TestObjectApi} and
+	 * {@link TestObjectPiranha}.
+	 */
+	public static synchronized ClientRegistry shared() {
+		if (shared == null) {
+			shared = new ClientRegistry(100, 30 * 1000);
+		}
+		return shared;
+	}
+
+	/**
+	 * Client without authentication.
+	 */
+	public Client client(String baseUrl) {
+		return client(baseUrl, null, false);
+	}
+
+	/**
+	 * Client authenticating with the API key, as required by the device and
+	 * storage endpoints.
+	 */
+	public Client apiClient(String baseUrl, String apiKey) {
+		return client(key(baseUrl, API_USER, apiKey),
+				HttpAuthenticationFeature.basicBuilder().credentials(API_USER, apiKey).build(), false);
+	}
+
+	/**
+	 * Client for calls that log in with a user's password. It keeps the
+	 * session cookie, which is only visible to calls with the same
+	 * credentials.
+	 */
+	public Client loginClient(String baseUrl, String user, String password) {
+		return client(key(baseUrl, user, password), null, true);
+	}
+
+	/**
+	 * Plain HTTP client on the same connections, for requests that need
+	 * control over the entity, e.g. large uploads.
+	 */
+	public synchronized CloseableHttpClient httpClient() {
+		if (httpClient == null) {
+			httpClient = HttpClients.custom()
+					.setConnectionManager(connectionManager)
+					.setConnectionManagerShared(true)
+					.setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(TIMEOUT_MILLIS)
+							.setSocketTimeout(TIMEOUT_MILLIS).build())
+					.disableCookieManagement()
+					.build();
+		}
+		return httpClient;
+	}
+
+	/**
+	 * <code>Authorization</code> header for requests sent with
+	 * {@link #httpClient()}.
+	 */
+	static String basicAuthorization(String apiKey) {
+		return "Basic " + Base64.encodeBase64String((API_USER + ":" + apiKey).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String key(String baseUrl, String user, String password) {
+		// the password is only kept as a hash
+		return baseUrl + '\n' + user + '\n' + DigestUtils.sha256Hex(password);
+	}
+
+	private Client client(String key, HttpAuthenticationFeature authentication, boolean cookies) {
+		Client client = clients.get(key);
+		if (client == null) {
+			Client created = create(authentication, cookies);
+			client = clients.putIfAbsent(key, created);
+			if (client == null) {
+				client = created;
+			} else {
+				created.close();
+			}
+		}
+		return client;
+	}
+
+	private Client create(HttpAuthenticationFeature authentication, boolean cookies) {
+		ClientConfig config = new ClientConfig();
+		config.connectorProvider(new ApacheConnectorProvider());
+		config.property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager);
+		config.property(ApacheClientProperties.CONNECTION_MANAGER_SHARED, true);
+		config.property(ClientProperties.CONNECT_TIMEOUT, TIMEOUT_MILLIS);
+		config.property(ClientProperties.READ_TIMEOUT, TIMEOUT_MILLIS);
+		// sent with Content-Length like the default connector does, which
+		// also makes requests repeatable on a stale pooled connection
+		config.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.BUFFERED);
+		// shared clients must not pass one caller's cookies on to the next
+		config.property(ApacheClientProperties.DISABLE_COOKIES, !cookies);
+		if (authentication != null) {
+			config.register(authentication);
+		}
+		return ClientBuilder.newClient(config);
+	}
+
+	@Override
+	public void close() {
+		evictor.shutdownNow();
+		for (Client client : clients.values()) {
+			client.close();
+		}
+		clients.clear();
+		if (httpClient != null) {
+			try {
+				httpClient.close();
+			} catch (IOException e) {
+				// the connections are closed below
+			}
+		}
+		connectionManager.close();
+	}
+
+}
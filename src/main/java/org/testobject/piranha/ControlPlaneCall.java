@@ -0,0 +1,146 @@
+package org.testobject.piranha;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.WebApplicationException;
+
+/**
+ * One remote call to the TestObject control plane, as seen by
+ * {@link ControlPlaneListener}s. Counters may still change until the call
+ * has ended.
+ */
+public class ControlPlaneCall {
+
+	public enum Type {
+		OPEN, KEEPALIVE, DELETE_SESSION, LIST_DEVICES, DEVICE_CATALOG, GET_EXISTING_APP, UPLOAD_FILE, REGENERATE_KEY
+	}
+
+	private final Type type;
+	private final String target;
+	private final long startTimeMillis = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicInteger retries = new AtomicInteger();
+	private final AtomicBoolean ended = new AtomicBoolean();
+	private volatile long durationNanos = -1;
+	private volatile int status = -1;
+	private volatile Throwable failure;
+
+	private ControlPlaneCall(Type type, String target) {
+		this.type = type;
+		this.target = target;
+	}
+
+	static ControlPlaneCall start(Type type, String target) {
+		ControlPlaneCall call = new ControlPlaneCall(type, target);
+		ControlPlaneListeners.started(call);
+		return call;
+	}
+
+	void sent(long bytes) {
+		bytesSent.addAndGet(bytes);
+	}
+
+	void received(long bytes) {
+		bytesReceived.addAndGet(bytes);
+	}
+
+	void retried() {
+		retries.incrementAndGet();
+	}
+
+	void status(int status) {
+		this.status = status;
+	}
+
+	void end() {
+		if (ended.compareAndSet(false, true)) {
+			durationNanos = System.nanoTime() - startNanos;
+			ControlPlaneListeners.ended(this);
+		}
+	}
+
+	void fail(Throwable failure) {
+		this.failure = failure;
+		if (status < 0) {
+			status = statusOf(failure);
+		}
+		end();
+	}
+
+	private static int statusOf(Throwable failure) {
+		for (Throwable e = failure; e != null; e = e.getCause()) {
+			if (e instanceof WebApplicationException && ((WebApplicationException) e).getResponse() != null) {
+				return ((WebApplicationException) e).getResponse().getStatus();
+			}
+		}
+		return -1;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return the URL called.
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	public long getStartTimeMillis() {
+		return startTimeMillis;
+	}
+
+	/**
+	 * @return the duration in nanoseconds, or -1 while the call is running.
+	 */
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * @return the HTTP status of the (last) response, or -1 if there was
+	 *         none. Calls that only tell success from failure report 200
+	 *         when they succeeded.
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return requests repeated within this call, e.g. failed upload chunks.
+	 */
+	public int getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * @return the exception the call failed with, if any.
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	public boolean isSuccessful() {
+		return failure == null && status >= 200 && status < 400;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + target + " (" + (durationNanos < 0 ? "running" : durationNanos / 1000000 + " ms") + ", HTTP "
+				+ status + ", " + bytesSent + " bytes sent, " + bytesReceived + " received, " + retries + " retries)";
+	}
+
+}
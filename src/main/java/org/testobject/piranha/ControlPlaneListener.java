@@ -0,0 +1,22 @@
+package org.testobject.piranha;
+
+/**
+ * Receives every remote call to the TestObject control plane: session
+ * creation, keepalives and deletion, device listings and app uploads.
+ * Register listeners with {@link ControlPlaneListeners#add(ControlPlaneListener)}
+ * or as a service in
+ * <code>META-INF/services/org.testobject.piranha.ControlPlaneListener</code>.
+ * <p>
+ * Listeners are called on the thread making or completing the call and must
+ * return quickly.
+ */
+public interface ControlPlaneListener {
+
+	void started(ControlPlaneCall call);
+
+	/**
+	 * Called exactly once per call, whether it succeeded or not.
+	 */
+	void ended(ControlPlaneCall call);
+
+}
@@ -0,0 +1,63 @@
+package org.testobject.piranha;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The {@link ControlPlaneListener}s of this JVM: {@link ControlPlaneStats#shared()},
+ * those found with the {@link ServiceLoader} and those added at runtime.
+ */
+public final class ControlPlaneListeners {
+
+	private static final Logger logger = Logger.getLogger(ControlPlaneListeners.class);
+
+	private static final CopyOnWriteArrayList<ControlPlaneListener> LISTENERS = new CopyOnWriteArrayList<ControlPlaneListener>();
+
+	static {
+		LISTENERS.add(ControlPlaneStats.shared());
+		try {
+			Iterator<ControlPlaneListener> services = ServiceLoader.load(ControlPlaneListener.class).iterator();
+			while (services.hasNext()) {
+				LISTENERS.add(services.next());
+			}
+		} catch (ServiceConfigurationError e) {
+			logger.warn("Failed to load control plane listeners", e);
+		}
+	}
+
+	private ControlPlaneListeners() {
+	}
+
+	public static void add(ControlPlaneListener listener) {
+		LISTENERS.addIfAbsent(listener);
+	}
+
+	public static void remove(ControlPlaneListener listener) {
+		LISTENERS.remove(listener);
+	}
+
+	static void started(ControlPlaneCall call) {
+		for (ControlPlaneListener listener : LISTENERS) {
+			try {
+				listener.started(call);
+			} catch (RuntimeException e) {
+				logger.warn("Control plane listener failed", e);
+			}
+		}
+	}
+
+	static void ended(ControlPlaneCall call) {
+		for (ControlPlaneListener listener : LISTENERS) {
+			try {
+				listener.ended(call);
+			} catch (RuntimeException e) {
+				logger.warn("Control plane listener failed", e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+package org.testobject.piranha;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.testobject.piranha.ControlPlaneCall.Type;
+
+/**
+ * Totals of the control plane calls by type, e.g. to see how much time a test
+ * run spends waiting for devices compared to uploads and teardown. The shared
+ * instance is always registered.
+ */
+public class ControlPlaneStats implements ControlPlaneListener {
+
+	private static final ControlPlaneStats SHARED = new ControlPlaneStats();
+
+	private final Map<Type, Totals> totals = new EnumMap<Type, Totals>(Type.class);
+
+	public ControlPlaneStats() {
+		for (Type type : Type.values()) {
+			totals.put(type, new Totals());
+		}
+	}
+
+	public static ControlPlaneStats shared() {
+		return SHARED;
+	}
+
+	@Override
+	public void started(ControlPlaneCall call) {
+		totals.get(call.getType()).running.increment();
+	}
+
+	@Override
+	public void ended(ControlPlaneCall call) {
+		Totals total = totals.get(call.getType());
+		total.running.decrement();
+		total.calls.increment();
+		if (!call.isSuccessful()) {
+			total.failures.increment();
+		}
+		total.nanos.add(call.getDurationNanos());
+		long max;
+		while (call.getDurationNanos() > (max = total.maxNanos.get())
+				&& !total.maxNanos.compareAndSet(max, call.getDurationNanos())) {
+		}
+		total.bytesSent.add(call.getBytesSent());
+		total.bytesReceived.add(call.getBytesReceived());
+		total.retries.add(call.getRetries());
+	}
+
+	public Totals get(Type type) {
+		return totals.get(type);
+	}
+
+	/**
+	 * Starts counting from zero, e.g. between test runs. Running calls are
+	 * still counted when they end.
+	 */
+	public void reset() {
+		for (Totals total : totals.values()) {
+			total.reset();
+		}
+	}
+
+	/**
+	 * @return a table of all call types. Time is summed over calls, so calls
+	 *         made in parallel can add up to more than the elapsed time.
+	 */
+	@Override
+	public String toString() {
+		long allNanos = 0;
+		for (Totals total : totals.values()) {
+			allNanos += total.getTotalNanos();
+		}
+
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("%-16s %7s %6s %10s %6s %9s %9s %10s %10s %7s%n", "call", "count", "failed",
+				"total s", "share", "mean ms", "max ms", "sent KB", "recv KB", "retries"));
+		for (Map.Entry<Type, Totals> entry : totals.entrySet()) {
+			Totals total = entry.getValue();
+			long calls = total.getCalls();
+			out.append(String.format("%-16s %7d %6d %10.1f %5.1f%% %9.1f %9.1f %10d %10d %7d%n", entry.getKey(),
+					calls, total.getFailures(), total.getTotalNanos() / 1e9, allNanos == 0 ? 0.0 : 100.0
+							* total.getTotalNanos() / allNanos, calls == 0 ? 0.0 : total.getTotalNanos() / 1e6 / calls,
+					total.getMaxNanos() / 1e6, total.getBytesSent() / 1024, total.getBytesReceived() / 1024, total
+							.getRetries()));
+		}
+		return out.toString();
+	}
+
+	public static class Totals {
+		private final LongAdder running = new LongAdder();
+		private final LongAdder calls = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final LongAdder bytesSent = new LongAdder();
+		private final LongAdder bytesReceived = new LongAdder();
+		private final LongAdder retries = new LongAdder();
+
+		void reset() {
+			calls.reset();
+			failures.reset();
+			nanos.reset();
+			maxNanos.set(0);
+			bytesSent.reset();
+			bytesReceived.reset();
+			retries.reset();
+		}
+
+		/**
+		 * @return calls started and not ended yet.
+		 */
+		public long getRunning() {
+			return running.sum();
+		}
+
+		/**
+		 * @return calls ended, successfully or not.
+		 */
+		public long getCalls() {
+			return calls.sum();
+		}
+
+		public long getFailures() {
+			return failures.sum();
+		}
+
+		public long getTotalNanos() {
+			return nanos.sum();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		public long getBytesSent() {
+			return bytesSent.sum();
+		}
+
+		public long getBytesReceived() {
+			return bytesReceived.sum();
+		}
+
+		public long getRetries() {
+			return retries.sum();
+		}
+	}
+
+}
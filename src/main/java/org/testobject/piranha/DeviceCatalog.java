@@ -0,0 +1,255 @@
+package org.testobject.piranha;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.log4j.Logger;
+import org.testobject.piranha.TestObjectDevice.DeviceContainer;
+
+import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Cached view of the devices of an account.
+ * <p>
+ * Device descriptors rarely change and are only downloaded again after
+ * {@link Settings#setDescriptorTtlMillis(long)}, availability is refreshed in
+ * the background every {@link Settings#setAvailabilityRefreshMillis(long)}.
+ * Both use conditional requests, so an unchanged list is not transferred
+ * again if the server sends an <code>ETag</code> or
+ * <code>Last-Modified</code> header. Callers read an immutable
+ * {@link Snapshot} without a network round trip.
+ */
+public class DeviceCatalog implements Closeable {
+
+	private final Logger logger = Logger.getLogger(DeviceCatalog.class);
+
+	private final Client client;
+	private final Settings settings;
+	private final Resource<List<DeviceContainer>> descriptors;
+	private final Resource<List<String>> available;
+	private final ScheduledExecutorService refresher;
+
+	private volatile Snapshot snapshot;
+	private long descriptorsFetchedAt;
+
+	public DeviceCatalog(String baseUrl, String apiKey) {
+		this(baseUrl, apiKey, new Settings());
+	}
+
+	public DeviceCatalog(String baseUrl, String apiKey, Settings settings) {
+		this.client = ClientRegistry.shared().apiClient(baseUrl, apiKey);
+		this.settings = settings;
+		this.descriptors = new Resource<List<DeviceContainer>>(baseUrl + "rest/descriptors/descriptors-api",
+				DeviceJson.DESCRIPTORS);
+		this.available = new Resource<List<String>>(baseUrl + "rest/descriptors/availableDescriptors-api",
+				DeviceJson.IDS);
+
+		this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("Piranha device catalog").setDaemon(true).build());
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (Exception e) {
+					logger.warn(String.format("Failed to refresh device catalog, keeping the last snapshot. Error: %s", e));
+				}
+			}
+		}, 0, settings.availabilityRefreshMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The latest devices. Only the first call waits for the catalog to be
+	 * loaded.
+	 */
+	public Snapshot snapshot() {
+		Snapshot current = snapshot;
+		if (current == null) {
+			current = refresh();
+		}
+		return current;
+	}
+
+	/**
+	 * Downloads availability, and descriptors if they expired, and publishes
+	 * a new snapshot.
+	 */
+	public synchronized Snapshot refresh() {
+		long now = System.currentTimeMillis();
+		boolean descriptorsExpired = snapshot == null || now - descriptorsFetchedAt >= settings.descriptorTtlMillis;
+		List<DeviceContainer> deviceList = descriptorsExpired ? descriptors.fetch(client) : descriptors.value;
+		if (descriptorsExpired) {
+			descriptorsFetchedAt = now;
+		}
+		List<String> availableIds = available.fetch(client);
+
+		if (snapshot != null && deviceList == snapshot.deviceList) {
+			if (availableIds != snapshot.availableList) {
+				// descriptor indexes are shared, only availability is replaced
+				snapshot = new Snapshot(deviceList, availableIds, snapshot.index.withAvailability(availableIds), now);
+			}
+			return snapshot;
+		}
+		snapshot = new Snapshot(deviceList, availableIds, new DeviceIndex(deviceList, availableIds), now);
+		return snapshot;
+	}
+
+	@Override
+	public void close() {
+		refresher.shutdownNow();
+	}
+
+	/**
+	 * Immutable state of the catalog at one point in time.
+	 */
+	public static class Snapshot {
+		private final List<DeviceContainer> deviceList;
+		private final List<String> availableList;
+		private final DeviceIndex index;
+		private final long timestamp;
+
+		Snapshot(List<DeviceContainer> deviceList, List<String> availableList, DeviceIndex index, long timestamp) {
+			this.deviceList = deviceList;
+			this.availableList = availableList;
+			this.index = index;
+			this.timestamp = timestamp;
+		}
+
+		public List<TestObjectDevice> getDevices() {
+			return index.getDevices();
+		}
+
+		/**
+		 * @return the device, or <code>null</code> if the account has no
+		 *         device with this ID.
+		 */
+		public TestObjectDevice getDevice(String id) {
+			return index.getDevice(id);
+		}
+
+		public boolean isAvailable(String id) {
+			return index.isAvailable(id);
+		}
+
+		/**
+		 * Finds devices, e.g.
+		 * <code>query().available().os(OS.ANDROID).minApiLevel(28).minScreenSize(7).first()</code>.
+		 */
+		public DeviceIndex.Query query() {
+			return index.query();
+		}
+
+		public DeviceIndex getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return when availability was last downloaded, in milliseconds since
+		 *         the epoch.
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+	}
+
+	/**
+	 * A list that is downloaded again only if it changed.
+	 */
+	private static class Resource<T> {
+		private final String url;
+		private final DeviceJson.Decoder<T> decoder;
+		private String etag;
+		private String lastModified;
+		private T value;
+
+		Resource(String url, DeviceJson.Decoder<T> decoder) {
+			this.url = url;
+			this.decoder = decoder;
+		}
+
+		/**
+		 * @return the previous instance if the server reported no change.
+		 */
+		T fetch(Client client) {
+			ControlPlaneCall call = ControlPlaneCall.start(ControlPlaneCall.Type.DEVICE_CATALOG, url);
+			try {
+				T fetched = fetch(client, call);
+				call.end();
+				return fetched;
+			} catch (RuntimeException e) {
+				call.fail(e);
+				throw e;
+			}
+		}
+
+		private T fetch(Client client, ControlPlaneCall call) {
+			Invocation.Builder request = client.target(url).request(MediaType.APPLICATION_JSON);
+			if (value != null && etag != null) {
+				request.header(HttpHeaders.IF_NONE_MATCH, etag);
+			}
+			if (value != null && lastModified != null) {
+				request.header(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+			}
+
+			Response response = request.get();
+			try {
+				call.status(response.getStatus());
+				if (response.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode() && value != null) {
+					return value;
+				}
+				if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+					throw new WebApplicationException("Failed to download " + url, response.getStatus());
+				}
+				CountingInputStream in = new CountingInputStream(response.readEntity(InputStream.class));
+				T parsed = decoder.decode(in);
+				call.received(in.getByteCount());
+				etag = response.getHeaderString(HttpHeaders.ETAG);
+				lastModified = response.getHeaderString(HttpHeaders.LAST_MODIFIED);
+				value = parsed;
+				return parsed;
+			} catch (IOException e) {
+				throw new ProcessingException(e);
+			} finally {
+				response.close();
+			}
+		}
+	}
+
+	/**
+	 * Refresh intervals of a catalog.
+	 */
+	public static class Settings {
+		private long descriptorTtlMillis = 60 * 60 * 1000;
+		private long availabilityRefreshMillis = 10 * 1000;
+
+		/**
+		 * How long downloaded device descriptors are used before they are
+		 * checked for changes.
+		 */
+		public void setDescriptorTtlMillis(long descriptorTtlMillis) {
+			this.descriptorTtlMillis = descriptorTtlMillis;
+		}
+
+		/**
+		 * Interval of the background availability refresh.
+		 */
+		public void setAvailabilityRefreshMillis(long availabilityRefreshMillis) {
+			this.availabilityRefreshMillis = availabilityRefreshMillis;
+		}
+	}
+
+}
@@ -0,0 +1,237 @@
+package org.testobject.piranha;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.testobject.piranha.TestObjectDevice.DeviceContainer;
+import org.testobject.piranha.TestObjectDevice.OS;
+
+/**
+ * Immutable index over device descriptors and their availability.
+ * <p>
+ * Every descriptor has a fixed position, and each index maps a value to the
+ * {@link BitSet} of positions having it, so a {@link Query} is a few bitwise
+ * operations. Range indexes are cumulative, e.g. the entry for API level 28
+ * of the minimum API level index holds all devices with level 28 or higher.
+ * New availability is applied with {@link #withAvailability(Collection)},
+ * which shares the descriptor indexes, so it can be swapped in frequently.
+ */
+public class DeviceIndex {
+
+	private final Descriptors descriptors;
+	private final BitSet available;
+	private final List<TestObjectDevice> devices;
+
+	public DeviceIndex(List<DeviceContainer> deviceList, Collection<String> availableIds) {
+		this(new Descriptors(deviceList), availableIds);
+	}
+
+	private DeviceIndex(Descriptors descriptors, Collection<String> availableIds) {
+		this.descriptors = descriptors;
+
+		BitSet available = new BitSet(descriptors.containers.length);
+		for (String id : availableIds) {
+			Integer position = descriptors.positions.get(id);
+			if (position != null) {
+				available.set(position);
+			}
+		}
+		this.available = available;
+
+		List<TestObjectDevice> devices = new ArrayList<TestObjectDevice>(descriptors.containers.length);
+		for (int i = 0; i < descriptors.containers.length; i++) {
+			devices.add(new TestObjectDevice(descriptors.containers[i], available.get(i)));
+		}
+		this.devices = Collections.unmodifiableList(devices);
+	}
+
+	/**
+	 * @return an index with the same descriptors and the given availability.
+	 */
+	public DeviceIndex withAvailability(Collection<String> availableIds) {
+		return new DeviceIndex(descriptors, availableIds);
+	}
+
+	/**
+	 * All devices, in the order of the descriptor list.
+	 */
+	public List<TestObjectDevice> getDevices() {
+		return devices;
+	}
+
+	/**
+	 * @return the device, or <code>null</code> if there is no device with
+	 *         this ID.
+	 */
+	public TestObjectDevice getDevice(String id) {
+		Integer position = descriptors.positions.get(id);
+		return position == null ? null : devices.get(position);
+	}
+
+	public boolean isAvailable(String id) {
+		Integer position = descriptors.positions.get(id);
+		return position != null && available.get(position);
+	}
+
+	public int getAvailableCount() {
+		return available.cardinality();
+	}
+
+	public Query query() {
+		return new Query();
+	}
+
+	/**
+	 * Conditions on devices, combined with <em>and</em>.
+	 */
+	public class Query {
+		private final BitSet matches;
+
+		Query() {
+			this.matches = new BitSet(descriptors.containers.length);
+			matches.set(0, descriptors.containers.length);
+		}
+
+		public Query available() {
+			matches.and(available);
+			return this;
+		}
+
+		public Query os(OS os) {
+			return and(descriptors.byOs.get(os));
+		}
+
+		public Query osVersion(String osVersion) {
+			return and(descriptors.byOsVersion.get(osVersion));
+		}
+
+		public Query minApiLevel(int apiLevel) {
+			return and(atLeast(descriptors.apiLevelAtLeast, apiLevel));
+		}
+
+		public Query maxApiLevel(int apiLevel) {
+			return and(atMost(descriptors.apiLevelAtMost, apiLevel));
+		}
+
+		/**
+		 * @param inches
+		 *            screen diagonal, e.g. 7 for tablets
+		 */
+		public Query minScreenSize(double inches) {
+			return and(atLeast(descriptors.screenSizeAtLeast, inches));
+		}
+
+		public Query maxScreenSize(double inches) {
+			return and(atMost(descriptors.screenSizeAtMost, inches));
+		}
+
+		/**
+		 * @return the first matching device in descriptor order, or
+		 *         <code>null</code>.
+		 */
+		public TestObjectDevice first() {
+			int position = matches.nextSetBit(0);
+			return position < 0 ? null : devices.get(position);
+		}
+
+		public List<TestObjectDevice> list() {
+			List<TestObjectDevice> result = new ArrayList<TestObjectDevice>(matches.cardinality());
+			for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+				result.add(devices.get(i));
+			}
+			return result;
+		}
+
+		public int count() {
+			return matches.cardinality();
+		}
+
+		private Query and(BitSet positions) {
+			if (positions == null) {
+				matches.clear();
+			} else {
+				matches.and(positions);
+			}
+			return this;
+		}
+
+		private <K> BitSet atLeast(NavigableMap<K, BitSet> index, K value) {
+			Map.Entry<K, BitSet> entry = index.ceilingEntry(value);
+			return entry == null ? null : entry.getValue();
+		}
+
+		private <K> BitSet atMost(NavigableMap<K, BitSet> index, K value) {
+			Map.Entry<K, BitSet> entry = index.floorEntry(value);
+			return entry == null ? null : entry.getValue();
+		}
+	}
+
+	/**
+	 * Indexes that only depend on the descriptors. Never modified after
+	 * construction.
+	 */
+	private static class Descriptors {
+		private final DeviceContainer[] containers;
+		private final Map<String, Integer> positions = new HashMap<String, Integer>();
+		private final Map<OS, BitSet> byOs = new EnumMap<OS, BitSet>(OS.class);
+		private final Map<String, BitSet> byOsVersion = new HashMap<String, BitSet>();
+		private final NavigableMap<Integer, BitSet> apiLevelAtLeast = new TreeMap<Integer, BitSet>();
+		private final NavigableMap<Integer, BitSet> apiLevelAtMost = new TreeMap<Integer, BitSet>();
+		private final NavigableMap<Double, BitSet> screenSizeAtLeast = new TreeMap<Double, BitSet>();
+		private final NavigableMap<Double, BitSet> screenSizeAtMost = new TreeMap<Double, BitSet>();
+
+		Descriptors(List<DeviceContainer> deviceList) {
+			this.containers = deviceList.toArray(new DeviceContainer[deviceList.size()]);
+
+			TreeMap<Integer, BitSet> byApiLevel = new TreeMap<Integer, BitSet>();
+			TreeMap<Double, BitSet> byScreenSize = new TreeMap<Double, BitSet>();
+			for (int i = 0; i < containers.length; i++) {
+				DeviceContainer container = containers[i];
+				positions.put(container.id, i);
+				if (container.os != null) {
+					positionsOf(byOs, container.os).set(i);
+				}
+				if (container.osVersion != null) {
+					positionsOf(byOsVersion, container.osVersion).set(i);
+				}
+				positionsOf(byApiLevel, container.apiLevel).set(i);
+				positionsOf(byScreenSize, container.screenSize).set(i);
+			}
+
+			accumulate(byApiLevel, apiLevelAtMost, apiLevelAtLeast);
+			accumulate(byScreenSize, screenSizeAtMost, screenSizeAtLeast);
+		}
+
+		private static <K> BitSet positionsOf(Map<K, BitSet> index, K key) {
+			BitSet positions = index.get(key);
+			if (positions == null) {
+				positions = new BitSet();
+				index.put(key, positions);
+			}
+			return positions;
+		}
+
+		private static <K> void accumulate(TreeMap<K, BitSet> byValue, NavigableMap<K, BitSet> atMost,
+				NavigableMap<K, BitSet> atLeast) {
+			BitSet below = new BitSet();
+			for (Map.Entry<K, BitSet> entry : byValue.entrySet()) {
+				below.or(entry.getValue());
+				atMost.put(entry.getKey(), (BitSet) below.clone());
+			}
+			BitSet above = new BitSet();
+			for (Map.Entry<K, BitSet> entry : byValue.descendingMap().entrySet()) {
+				above.or(entry.getValue());
+				atLeast.put(entry.getKey(), (BitSet) above.clone());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+package org.testobject.piranha;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.client.ResponseProcessingException;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+
+import org.testobject.piranha.TestObjectDevice.DeviceContainer;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Downloads the descriptor endpoints and decodes them straight from the
+ * response stream, one element at a time, without buffering the body as a
+ * string.
+ */
+final class DeviceJson {
+
+	static final Gson GSON = new Gson();
+
+	interface Decoder<T> {
+		T decode(InputStream in) throws IOException;
+	}
+
+	static final Decoder<List<DeviceContainer>> DESCRIPTORS = new Decoder<List<DeviceContainer>>() {
+		@Override
+		public List<DeviceContainer> decode(InputStream in) throws IOException {
+			JsonReader reader = reader(in);
+			List<DeviceContainer> descriptors = new ArrayList<DeviceContainer>();
+			reader.beginArray();
+			while (reader.hasNext()) {
+				descriptors.add(GSON.<DeviceContainer> fromJson(reader, DeviceContainer.class));
+			}
+			reader.endArray();
+			return descriptors;
+		}
+	};
+
+	static final Decoder<List<String>> IDS = new Decoder<List<String>>() {
+		@Override
+		public List<String> decode(InputStream in) throws IOException {
+			JsonReader reader = reader(in);
+			List<String> ids = new ArrayList<String>();
+			reader.beginArray();
+			while (reader.hasNext()) {
+				ids.add(reader.nextString());
+			}
+			reader.endArray();
+			return ids;
+		}
+	};
+
+	private DeviceJson() {
+	}
+
+	/**
+	 * Downloads and decodes on Jersey's async executor, so several endpoints
+	 * can be fetched concurrently.
+	 *
+	 * @param call
+	 *            counts the bytes received
+	 */
+	static <T> CompletableFuture<T> getAsync(WebTarget target, final Decoder<T> decoder, final ControlPlaneCall call) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		target.request(MediaType.APPLICATION_JSON).async().get(new InvocationCallback<InputStream>() {
+			@Override
+			public void completed(InputStream in) {
+				CountingInputStream counting = new CountingInputStream(in);
+				try {
+					result.complete(decoder.decode(counting));
+				} catch (Throwable e) {
+					result.completeExceptionally(e);
+				} finally {
+					call.received(counting.getByteCount());
+					IOUtils.closeQuietly(in);
+				}
+			}
+
+			@Override
+			public void failed(Throwable e) {
+				// error statuses arrive wrapped, unlike with a synchronous call
+				if (e instanceof ResponseProcessingException && e.getCause() instanceof WebApplicationException) {
+					e = e.getCause();
+				}
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Waits for the download and rethrows its failure unwrapped, like the
+	 * synchronous call would.
+	 */
+	static <T> T join(CompletableFuture<T> download) {
+		try {
+			return download.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new ProcessingException(cause);
+		}
+	}
+
+	private static JsonReader reader(InputStream in) {
+		return new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+	}
+
+}
@@ -0,0 +1,74 @@
+package org.testobject.piranha;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Request body sent straight from a file region with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, with a
+ * known <code>Content-Length</code> and without copying it through heap
+ * buffers. The file is opened for each write, so the entity can be retried.
+ */
+class FileChannelEntity extends AbstractHttpEntity {
+
+	private final Path file;
+	private final long offset;
+	private final long length;
+
+	FileChannelEntity(Path file, long offset, long length, ContentType contentType) {
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+		setContentType(contentType.toString());
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return length;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		channel.position(offset);
+		return new BoundedInputStream(Channels.newInputStream(channel), length);
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			WritableByteChannel target = Channels.newChannel(out);
+			long position = offset;
+			long end = offset + length;
+			while (position < end) {
+				long transferred = channel.transferTo(position, end - position, target);
+				if (transferred <= 0 && position >= channel.size()) {
+					throw new IOException("File shrank during upload: " + file);
+				}
+				position += transferred;
+			}
+		}
+		out.flush();
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+}
@@ -0,0 +1,145 @@
+package org.testobject.piranha;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * MD5 hashes of app binaries, remembered across JVMs so that an unchanged
+ * file is not read again.
+ * <p>
+ * A hash is reused while the file's size, modification time and file key
+ * (inode and device, where the file system has one) are unchanged. Entries
+ * are kept by canonical path in a {@link PersistentMap}, shared by all
+ * processes using the same file.
+ */
+public class FingerprintCache {
+
+	private static final long MAP_WINDOW = 64 * 1024 * 1024;
+
+	private static FingerprintCache shared;
+
+	private final Logger logger = Logger.getLogger(FingerprintCache.class);
+
+	private final PersistentMap store;
+	private volatile Map<String, String> entries;
+
+	public FingerprintCache(Path file) {
+		this.store = new PersistentMap(file);
+	}
+
+	/**
+	 * The cache in <code>~/.testobject/fingerprints.properties</code>.
+	 */
+	public static synchronized FingerprintCache shared() {
+		if (shared == null) {
+			shared = new FingerprintCache(Paths.get(System.getProperty("user.home"), ".testobject",
+					"fingerprints.properties"));
+		}
+		return shared;
+	}
+
+	/**
+	 * @return the MD5 hash of the file as lower case hex string
+	 */
+	public String md5(File file) {
+		try {
+			String path = file.getCanonicalPath();
+			String stamp = stamp(file.toPath());
+
+			String md5 = lookup(entries(false), path, stamp);
+			if (md5 == null) {
+				// another process may have hashed it since we last looked
+				md5 = lookup(entries(true), path, stamp);
+			}
+			if (md5 != null) {
+				return md5;
+			}
+
+			md5 = hash(file);
+			if (stamp.equals(stamp(file.toPath()))) {
+				store(path, stamp + ',' + md5);
+			}
+			return md5;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Hashes through memory-mapped windows of the file, so the content is
+	 * never copied to the heap.
+	 */
+	static String hash(File file) throws IOException {
+		MessageDigest digest = DigestUtils.getMd5Digest();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long position = 0; position < size; position += MAP_WINDOW) {
+				digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+			}
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	/**
+	 * Changes whenever the content may have changed.
+	 */
+	private static String stamp(Path path) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		Object fileKey = attributes.fileKey();
+		return attributes.size() + "," + attributes.lastModifiedTime().toMillis() + ","
+				+ (fileKey == null ? "" : fileKey.toString().replace(',', ';'));
+	}
+
+	private static String lookup(Map<String, String> entries, String path, String stamp) {
+		String entry = entries.get(path);
+		if (entry == null || !entry.startsWith(stamp + ',')) {
+			return null;
+		}
+		return entry.substring(stamp.length() + 1);
+	}
+
+	private Map<String, String> entries(boolean reload) throws IOException {
+		Map<String, String> current = entries;
+		if (current == null || reload) {
+			try {
+				current = store.load();
+			} catch (IOException | IllegalArgumentException e) {
+				logger.warn(String.format("Ignoring unreadable fingerprint cache %s. Error: %s", store.getFile(), e));
+				current = Collections.emptyMap();
+			}
+			entries = current;
+		}
+		return current;
+	}
+
+	private void store(String path, String entry) {
+		try {
+			// entries of deleted files are dropped on the way
+			List<String> removals = new ArrayList<String>();
+			for (String cached : entries(false).keySet()) {
+				if (!new File(cached).exists()) {
+					removals.add(cached);
+				}
+			}
+			entries = store.update(Collections.singletonMap(path, entry), removals);
+		} catch (IOException e) {
+			logger.warn(String.format("Failed to update fingerprint cache %s. Error: %s", store.getFile(), e));
+		}
+	}
+
+}
@@ -0,0 +1,302 @@
+package org.testobject.piranha;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.MediaType;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.log4j.Logger;
+
+import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps all sessions of a JVM alive from a single timer thread.
+ * <p>
+ * Sessions are spread over the slots of a timer wheel that advances once per
+ * tick, so each session is visited once per interval. A keepalive is only
+ * sent if the session had no proxy traffic during the last interval (see
+ * {@link #touch(String)}), and it is sent with the non-blocking upstream
+ * client, so no thread waits for the response. After too many consecutive
+ * failures the session's expiry callback is run on a separate thread, so a
+ * slow close cannot hold up the keepalives of other sessions.
+ */
+public class HeartbeatManager {
+
+	public static final long DEFAULT_INTERVAL_MILLIS = 10 * 1000;
+	public static final long DEFAULT_TICK_MILLIS = 1000;
+	public static final int DEFAULT_MAX_FAILURES = 6;
+
+	private static HeartbeatManager shared;
+
+	private final Logger logger = Logger.getLogger(HeartbeatManager.class);
+
+	private final long intervalMillis;
+	private final long tickMillis;
+	private final int maxFailures;
+	private final UpstreamConnectionPool connectionPool;
+	private final RequestConfig requestConfig;
+
+	private final List<Queue<Heartbeat>> wheel;
+	private final ConcurrentMap<String, Heartbeat> heartbeats = new ConcurrentHashMap<String, Heartbeat>();
+	private final ScheduledExecutorService timer;
+	private final ExecutorService expirer;
+	private long tick;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	public HeartbeatManager(long intervalMillis, long tickMillis, int maxFailures, UpstreamConnectionPool connectionPool) {
+		this.intervalMillis = intervalMillis;
+		this.tickMillis = tickMillis;
+		this.maxFailures = maxFailures;
+		this.connectionPool = connectionPool;
+		this.requestConfig = RequestConfig.custom().setConnectTimeout((int) intervalMillis)
+				.setSocketTimeout((int) (intervalMillis * maxFailures)).build();
+
+		int slots = (int) Math.max(1, intervalMillis / tickMillis);
+		this.wheel = new ArrayList<Queue<Heartbeat>>(slots);
+		for (int i = 0; i < slots; i++) {
+			wheel.add(new ConcurrentLinkedQueue<Heartbeat>());
+		}
+
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("Piranha heartbeat").setDaemon(true).build());
+		this.expirer = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+				.setNameFormat("Piranha heartbeat expiry-%d").setDaemon(true).build());
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				advance();
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The manager used by all sessions of this JVM.
+	 */
+	public static synchronized HeartbeatManager shared() {
+		if (shared == null) {
+			shared = new HeartbeatManager(DEFAULT_INTERVAL_MILLIS, DEFAULT_TICK_MILLIS, DEFAULT_MAX_FAILURES,
+					UpstreamConnectionPool.shared());
+		}
+		return shared;
+	}
+
+	/**
+	 * Starts sending keepalives for a session.
+	 *
+	 * @param keepAliveUrl
+	 *            URL to post the keepalive to
+	 * @param onExpired
+	 *            run once if the keepalive failed too often in a row
+	 */
+	public Heartbeat register(String sessionId, String keepAliveUrl, Runnable onExpired) {
+		Heartbeat heartbeat = new Heartbeat(sessionId, keepAliveUrl, onExpired);
+		Heartbeat previous = heartbeats.put(sessionId, heartbeat);
+		if (previous != null) {
+			previous.cancel();
+		}
+		synchronized (this) {
+			// the slot visited last, i.e. one full interval from now
+			wheel.get((int) ((tick + wheel.size() - 1) % wheel.size())).add(heartbeat);
+		}
+		return heartbeat;
+	}
+
+	/**
+	 * Records traffic for the session, which makes the next keepalive
+	 * unnecessary. Unknown sessions are ignored.
+	 */
+	public void touch(String sessionId) {
+		Heartbeat heartbeat = heartbeats.get(sessionId);
+		if (heartbeat != null) {
+			heartbeat.lastActivity = System.currentTimeMillis();
+		}
+	}
+
+	public int getSessionCount() {
+		return heartbeats.size();
+	}
+
+	public long getKeepAlivesSent() {
+		return sent.get();
+	}
+
+	/**
+	 * @return keepalives that were not necessary because of proxy traffic.
+	 */
+	public long getKeepAlivesSkipped() {
+		return skipped.get();
+	}
+
+	public long getKeepAlivesFailed() {
+		return failed.get();
+	}
+
+	private void advance() {
+		Queue<Heartbeat> slot;
+		synchronized (this) {
+			slot = wheel.get((int) (tick % wheel.size()));
+			tick++;
+		}
+
+		long now = System.currentTimeMillis();
+		Iterator<Heartbeat> iterator = slot.iterator();
+		while (iterator.hasNext()) {
+			Heartbeat heartbeat = iterator.next();
+			// an exception escaping here would cancel the timer for all sessions
+			try {
+				if (heartbeat.cancelled.get()) {
+					iterator.remove();
+				} else if (heartbeat.failures.get() > maxFailures) {
+					iterator.remove();
+					heartbeat.expire();
+				} else if (now - heartbeat.lastActivity < intervalMillis) {
+					skipped.incrementAndGet();
+				} else if (heartbeat.inFlight.compareAndSet(false, true)) {
+					send(heartbeat);
+				}
+			} catch (RuntimeException e) {
+				logger.error(String.format("Failed to send keepalive for session %s using url '%s'. Error: %s",
+						heartbeat.sessionId, heartbeat.keepAliveUrl, e));
+				heartbeat.inFlight.set(false);
+			}
+		}
+	}
+
+	private void send(final Heartbeat heartbeat) {
+		HttpPost post = new HttpPost(heartbeat.keepAliveUrl);
+		post.setConfig(requestConfig);
+		post.setHeader(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON);
+		post.setEntity(new StringEntity("", ContentType.APPLICATION_JSON));
+
+		CloseableHttpAsyncClient client = connectionPool.getAsyncHttpClient();
+		sent.incrementAndGet();
+		final ControlPlaneCall call = ControlPlaneCall.start(ControlPlaneCall.Type.KEEPALIVE, heartbeat.keepAliveUrl);
+		try {
+			execute(client, post, heartbeat, call);
+		} catch (RuntimeException e) {
+			call.fail(e);
+			throw e;
+		}
+	}
+
+	private void execute(CloseableHttpAsyncClient client, HttpPost post, final Heartbeat heartbeat,
+			final ControlPlaneCall call) {
+		client.execute(post, new FutureCallback<HttpResponse>() {
+			@Override
+			public void completed(HttpResponse response) {
+				int status = response.getStatusLine().getStatusCode();
+				if (response.getEntity() != null && response.getEntity().getContentLength() > 0) {
+					call.received(response.getEntity().getContentLength());
+				}
+				call.status(status);
+				call.end();
+				if (status >= 200 && status < 300) {
+					heartbeat.failures.set(0);
+					heartbeat.inFlight.set(false);
+				} else {
+					failed("HTTP " + status);
+				}
+			}
+
+			@Override
+			public void failed(Exception e) {
+				call.fail(e);
+				failed(e.toString());
+			}
+
+			@Override
+			public void cancelled() {
+				call.fail(new CancellationException());
+				failed("cancelled");
+			}
+
+			private void failed(String reason) {
+				failed.incrementAndGet();
+				int failures = heartbeat.failures.getAndIncrement();
+				logger.error(String.format("KeepAlive exception Occurred (try #%d) using url '%s' error details are : %s",
+						failures, heartbeat.keepAliveUrl, reason));
+				heartbeat.inFlight.set(false);
+			}
+		});
+	}
+
+	/**
+	 * Registration of a single session.
+	 */
+	public class Heartbeat {
+		private final String sessionId;
+		private final String keepAliveUrl;
+		private final Runnable onExpired;
+		private final AtomicBoolean cancelled = new AtomicBoolean();
+		private final AtomicBoolean inFlight = new AtomicBoolean();
+		private final AtomicInteger failures = new AtomicInteger();
+		private volatile long lastActivity;
+
+		Heartbeat(String sessionId, String keepAliveUrl, Runnable onExpired) {
+			this.sessionId = sessionId;
+			this.keepAliveUrl = keepAliveUrl;
+			this.onExpired = onExpired;
+		}
+
+		public String getSessionId() {
+			return sessionId;
+		}
+
+		/**
+		 * @return the number of keepalives that failed since the last
+		 *         successful one.
+		 */
+		public int getConsecutiveFailures() {
+			return failures.get();
+		}
+
+		public void cancel() {
+			if (cancelled.compareAndSet(false, true)) {
+				heartbeats.remove(sessionId, this);
+			}
+		}
+
+		/**
+		 * Runs on the timer thread, the callback on the expiry executor.
+		 */
+		private void expire() {
+			cancel();
+			logger.error("Closing the testObjectSession : " + sessionId);
+			expirer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						onExpired.run();
+					} catch (Throwable e) {
+						logger.warn(String.format("Failed to close expired session: %s. Error: %s", sessionId, e));
+					}
+				}
+			});
+		}
+	}
+
+}
@@ -0,0 +1,85 @@
+package org.testobject.piranha;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram with power-of-two buckets. Recording is an index
+ * computation and two atomic additions; buckets are only summed up when the
+ * histogram is written out.
+ */
+final class Histogram {
+
+	private final int minExponent;
+	private final double unit;
+	/**
+	 * Bucket i counts values up to 2^(minExponent + i), the last one all
+	 * larger values.
+	 */
+	private final AtomicLongArray buckets;
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * @param minExponent
+	 *            upper bound of the first bucket, as a power of two
+	 * @param maxExponent
+	 *            upper bound of the last finite bucket, as a power of two
+	 * @param unit
+	 *            factor applied to values and bounds when written, e.g. 1e-9
+	 *            to write nanoseconds as seconds
+	 */
+	Histogram(int minExponent, int maxExponent, double unit) {
+		this.minExponent = minExponent;
+		this.unit = unit;
+		this.buckets = new AtomicLongArray(maxExponent - minExponent + 2);
+	}
+
+	static Histogram nanos() {
+		// 1 µs to 68 s
+		return new Histogram(10, 36, 1e-9);
+	}
+
+	static Histogram bytes() {
+		// 64 B to 1 GB
+		return new Histogram(6, 30, 1);
+	}
+
+	void record(long value) {
+		int exponent = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+		int bucket = Math.min(Math.max(0, exponent - minExponent), buckets.length() - 1);
+		buckets.incrementAndGet(bucket);
+		sum.add(value);
+	}
+
+	long getCount() {
+		long count = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Appends the series in Prometheus text format.
+	 *
+	 * @param labels
+	 *            label pairs without braces, e.g.
+	 *            <code>session="a",method="b"</code>
+	 */
+	void write(StringBuilder out, String name, String labels) {
+		long cumulative = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			cumulative += buckets.get(i);
+			out.append(name).append("_bucket{").append(labels).append(",le=\"");
+			if (i == buckets.length() - 1) {
+				out.append("+Inf");
+			} else {
+				out.append((double) (1L << (minExponent + i)) * unit);
+			}
+			out.append("\"} ").append(cumulative).append('\n');
+		}
+		out.append(name).append("_sum{").append(labels).append("} ").append(sum.sum() * unit).append('\n');
+		out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.testobject.piranha;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Coalesces concurrent calls for the same key onto one execution: the first
+ * caller runs the work, everybody arriving while it runs waits for its
+ * result. Results are not kept once the work is done.
+ */
+final class InFlight<T> {
+
+	private final ConcurrentMap<String, CompletableFuture<T>> running = new ConcurrentHashMap<String, CompletableFuture<T>>();
+
+	T run(String key, Callable<T> work) {
+		CompletableFuture<T> mine = new CompletableFuture<T>();
+		CompletableFuture<T> other = running.putIfAbsent(key, mine);
+		if (other != null) {
+			return join(other);
+		}
+
+		try {
+			T result = work.call();
+			mine.complete(result);
+			return result;
+		} catch (RuntimeException | Error e) {
+			// waiters must not be left waiting for a future nobody completes
+			mine.completeExceptionally(e);
+			throw e;
+		} catch (Exception e) {
+			mine.completeExceptionally(e);
+			throw new RuntimeException(e);
+		} finally {
+			running.remove(key, mine);
+		}
+	}
+
+	/**
+	 * @return the number of keys currently worked on.
+	 */
+	int size() {
+		return running.size();
+	}
+
+	/**
+	 * Waits for the future and rethrows its failure unwrapped.
+	 */
+	static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+}
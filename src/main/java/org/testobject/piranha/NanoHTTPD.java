@@ -5,13 +5,16 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -20,8 +23,15 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
@@ -30,17 +40,56 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
 
 public abstract class NanoHTTPD {
+	private static final Logger logger = Logger.getLogger(NanoHTTPD.class);
+
 	/**
 	 * Maximum time to wait on Socket.getInputStream().read() (in milliseconds)
 	 * This is required as the Keep-Alive HTTP connections would otherwise block
 	 * the socket reading thread forever (or as long the browser is open).
 	 */
 	public static final int SOCKET_READ_TIMEOUT = 5000;
+	/**
+	 * Time after which an idle keep-alive connection is closed in non-blocking
+	 * mode (in milliseconds). Idle connections only cost a selection key there,
+	 * so they are kept around much longer than in blocking mode.
+	 */
+	public static final int NON_BLOCKING_IDLE_TIMEOUT = 60000;
+	/**
+	 * Number of worker threads used in non-blocking mode unless a pooled
+	 * {@link AsyncRunner} has been set explicitly.
+	 */
+	public static final int DEFAULT_WORKER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+	/**
+	 * Requests with a larger Content-Length are answered with 413 unless
+	 * {@link #setMaxRequestSize(long)} says otherwise.
+	 */
+	public static final long DEFAULT_MAX_REQUEST_SIZE = 1024L * 1024 * 1024;
+	/**
+	 * Request bodies larger than this are spooled to a temp file in
+	 * non-blocking mode instead of being buffered in memory.
+	 */
+	public static final int MEMORY_STORE_LIMIT = 64 * 1024;
 	/**
 	 * Common mime type for dynamic content: plain text
 	 */
@@ -54,6 +103,9 @@ public abstract class NanoHTTPD {
 	 * parameters map for later re-processing.
 	 */
 	private static final String QUERY_STRING_PARAMETER = "NanoHttpd.QUERY_STRING";
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
 	private final String hostname;
 	private final int myPort;
 	private ServerSocket myServerSocket;
@@ -67,6 +119,18 @@ public abstract class NanoHTTPD {
 	 * Pluggable strategy for creating and cleaning up temporary files.
 	 */
 	private TempFileManagerFactory tempFileManagerFactory;
+	/**
+	 * Multiplex all connections on a single selector thread instead of
+	 * dedicating a thread to each connection.
+	 */
+	private boolean nonBlocking;
+	private SelectorLoop selectorLoop;
+	/**
+	 * Set if the worker pool has been created by the server itself and must be
+	 * shut down with it.
+	 */
+	private boolean ownsAsyncRunner;
+	private long maxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
 
 	/**
 	 * Constructs an HTTP server on given port.
@@ -119,6 +183,11 @@ public abstract class NanoHTTPD {
 	 *             if the socket is in use.
 	 */
 	public void start() throws IOException {
+		if (nonBlocking) {
+			startNonBlocking();
+			return;
+		}
+
 		myServerSocket = new ServerSocket();
 		myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort)
 				: new InetSocketAddress(myPort));
@@ -132,33 +201,37 @@ public abstract class NanoHTTPD {
 						registerConnection(finalAccept);
 						finalAccept.setSoTimeout(SOCKET_READ_TIMEOUT);
 						final InputStream inputStream = finalAccept.getInputStream();
-						asyncRunner.exec(new Runnable() {
-							@Override
-							public void run() {
-								OutputStream outputStream = null;
-								try {
-									outputStream = finalAccept.getOutputStream();
-									TempFileManager tempFileManager = tempFileManagerFactory.create();
-									HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream,
-											finalAccept.getInetAddress());
-									while (!finalAccept.isClosed()) {
-										session.execute();
-									}
-								} catch (Exception e) {
-									// When the socket is closed by the client,
-									// we throw our own SocketException
-									// to break the "keep alive" loop above.
-									if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
-										e.printStackTrace();
+						try {
+							asyncRunner.exec(new Runnable() {
+								@Override
+								public void run() {
+									OutputStream outputStream = null;
+									try {
+										outputStream = finalAccept.getOutputStream();
+										TempFileManager tempFileManager = tempFileManagerFactory.create();
+										HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream,
+												finalAccept.getInetAddress());
+										while (!finalAccept.isClosed()) {
+											session.execute();
+										}
+									} catch (Exception e) {
+										// When the socket is closed by the client,
+										// we throw our own SocketException
+										// to break the "keep alive" loop above.
+										if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+											e.printStackTrace();
+										}
+									} finally {
+										safeClose(outputStream);
+										safeClose(inputStream);
+										safeClose(finalAccept);
+										unRegisterConnection(finalAccept);
 									}
-								} finally {
-									safeClose(outputStream);
-									safeClose(inputStream);
-									safeClose(finalAccept);
-									unRegisterConnection(finalAccept);
 								}
-							}
-						});
+							});
+						} catch (RejectedExecutionException e) {
+							rejectConnection(finalAccept);
+						}
 					} catch (IOException e) {
 					}
 				} while (!myServerSocket.isClosed());
@@ -169,16 +242,74 @@ public abstract class NanoHTTPD {
 		myThread.start();
 	}
 
+	/**
+	 * Answers with 503 and closes the connection if the {@link AsyncRunner}
+	 * refuses to take on more work.
+	 */
+	private void rejectConnection(Socket socket) {
+		try {
+			Response r = newServiceUnavailableResponse();
+			r.send(socket.getOutputStream());
+		} catch (IOException ignored) {
+		} finally {
+			safeClose(socket);
+			unRegisterConnection(socket);
+		}
+	}
+
+	private Response newPayloadTooLargeResponse() {
+		Response r = new Response(Response.Status.PAYLOAD_TOO_LARGE, MIME_PLAINTEXT,
+				"PAYLOAD TOO LARGE: Request body exceeds " + maxRequestSize + " bytes.");
+		r.addHeader("Connection", "close");
+		return r;
+	}
+
+	private static Response newServiceUnavailableResponse() {
+		Response r = new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT,
+				"SERVICE UNAVAILABLE: Too many concurrent requests.");
+		r.addHeader("Connection", "close");
+		return r;
+	}
+
+	private void startNonBlocking() throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		myServerSocket = serverChannel.socket();
+		myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort)
+				: new InetSocketAddress(myPort));
+
+		// a thread per request would defeat the purpose, so fall back to a
+		// small pool unless the caller has chosen a strategy
+		if (asyncRunner instanceof DefaultAsyncRunner) {
+			asyncRunner = new PooledAsyncRunner(DEFAULT_WORKER_THREADS);
+			ownsAsyncRunner = true;
+		}
+
+		selectorLoop = new SelectorLoop(serverChannel, Selector.open());
+		myThread = new Thread(selectorLoop);
+		myThread.setDaemon(true);
+		myThread.setName("NanoHttpd Selector");
+		myThread.start();
+	}
+
 	/**
 	 * Stop the server.
 	 */
 	public void stop() {
 		try {
 			safeClose(myServerSocket);
+			if (selectorLoop != null) {
+				selectorLoop.wakeup();
+			}
 			closeAllConnections();
 			if (myThread != null) {
 				myThread.join();
 			}
+			if (ownsAsyncRunner) {
+				safeClose((Closeable) asyncRunner);
+				asyncRunner = new DefaultAsyncRunner();
+				ownsAsyncRunner = false;
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -225,6 +356,38 @@ public abstract class NanoHTTPD {
 		return wasStarted() && !myServerSocket.isClosed() && myThread.isAlive();
 	}
 
+	/**
+	 * Switches between the classic thread-per-connection model and a single
+	 * selector thread that reads requests without blocking and hands only
+	 * complete requests to the {@link AsyncRunner}. Must be called before
+	 * {@link #start()}.
+	 *
+	 * @param nonBlocking
+	 *            <code>true</code> to multiplex connections on a selector.
+	 */
+	public void setNonBlocking(boolean nonBlocking) {
+		this.nonBlocking = nonBlocking;
+	}
+
+	public boolean isNonBlocking() {
+		return nonBlocking;
+	}
+
+	/**
+	 * Requests announcing a larger body are answered with 413 and the
+	 * connection is closed without reading the body.
+	 *
+	 * @param maxRequestSize
+	 *            maximum Content-Length in bytes
+	 */
+	public void setMaxRequestSize(long maxRequestSize) {
+		this.maxRequestSize = maxRequestSize;
+	}
+
+	public long getMaxRequestSize() {
+		return maxRequestSize;
+	}
+
 	/**
 	 * Override this to customize the server.
 	 * <p/>
@@ -263,6 +426,27 @@ public abstract class NanoHTTPD {
 		return new NanoHTTPD.Response(Response.Status.OK, MIME_PLAINTEXT, "Hello, client!");
 	}
 
+	/**
+	 * Override this to answer a request without occupying a thread while the
+	 * response is being produced, e.g. by another server.
+	 * <p/>
+	 * <p>
+	 * The request body must be read before this method returns; the response
+	 * may be passed to the callback later from any thread. In non-blocking
+	 * mode the connection is parked until then. In blocking mode the
+	 * connection's thread waits for the callback.
+	 * </p>
+	 * (By default, this delegates to serve(IHTTPSession).)
+	 *
+	 * @param session
+	 *            The HTTP session
+	 * @param callback
+	 *            receives the response exactly once
+	 */
+	public void serveAsync(IHTTPSession session, ResponseCallback callback) {
+		callback.respond(serve(session));
+	}
+
 	/**
 	 * Decode percent encoded <code>String</code> values.
 	 *
@@ -368,14 +552,32 @@ public abstract class NanoHTTPD {
 	public enum Method {
 		GET, PUT, POST, DELETE, HEAD, OPTIONS;
 
+		private static final Method[] VALUES = values();
+		private static final String[] LOWER_CASE_NAMES = new String[VALUES.length];
+		static {
+			for (int i = 0; i < VALUES.length; i++) {
+				LOWER_CASE_NAMES[i] = VALUES[i].name().toLowerCase(Locale.US);
+			}
+		}
+
 		static Method lookup(String method) {
-			for (Method m : Method.values()) {
+			for (Method m : VALUES) {
 				if (m.toString().equalsIgnoreCase(method)) {
 					return m;
 				}
 			}
 			return null;
 		}
+
+		static Method lookup(byte[] buf, int offset, int length) {
+			for (int i = 0; i < VALUES.length; i++) {
+				String name = LOWER_CASE_NAMES[i];
+				if (name.length() == length && regionMatchesIgnoreCase(buf, offset, name)) {
+					return VALUES[i];
+				}
+			}
+			return null;
+		}
 	}
 
 	/**
@@ -385,6 +587,41 @@ public abstract class NanoHTTPD {
 		void exec(Runnable code);
 	}
 
+	/**
+	 * Completes a request served by
+	 * {@link NanoHTTPD#serveAsync(IHTTPSession, ResponseCallback)}.
+	 */
+	public interface ResponseCallback {
+		void respond(Response response);
+	}
+
+	/**
+	 * Lets a connection thread wait for an asynchronously produced response.
+	 */
+	private static final class BlockingResponse implements ResponseCallback {
+		private Response response;
+		private boolean done;
+
+		synchronized void reset() {
+			response = null;
+			done = false;
+		}
+
+		@Override
+		public synchronized void respond(Response response) {
+			this.response = response;
+			this.done = true;
+			notifyAll();
+		}
+
+		synchronized Response await() throws InterruptedException {
+			while (!done) {
+				wait();
+			}
+			return response;
+		}
+	}
+
 	/**
 	 * Factory to create temp file managers.
 	 */
@@ -447,6 +684,154 @@ public abstract class NanoHTTPD {
 		}
 	}
 
+	/**
+	 * Threading strategy backed by a fixed number of reusable daemon threads.
+	 * <p/>
+	 * <p>
+	 * Work beyond the thread count waits in a queue. If the queue is bounded
+	 * and full, the server answers with <i>503 Service Unavailable</i> instead
+	 * of piling up more work. Note that in blocking mode a task is a whole
+	 * keep-alive connection, in non-blocking mode just a single request.
+	 * </p>
+	 */
+	public static class PooledAsyncRunner implements AsyncRunner, Closeable {
+		private final ThreadPoolExecutor executor;
+
+		/**
+		 * Creates a pool with an unbounded queue.
+		 */
+		public PooledAsyncRunner(int threads) {
+			this(threads, new LinkedBlockingQueue<Runnable>());
+		}
+
+		/**
+		 * Creates a pool that rejects work once <code>queueCapacity</code>
+		 * tasks are waiting for a thread.
+		 */
+		public PooledAsyncRunner(int threads, int queueCapacity) {
+			this(threads, queueCapacity > 0 ? new ArrayBlockingQueue<Runnable>(queueCapacity)
+					: new SynchronousQueue<Runnable>());
+		}
+
+		private PooledAsyncRunner(int threads, BlockingQueue<Runnable> queue) {
+			this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r);
+					t.setDaemon(true);
+					t.setName("NanoHttpd Worker (#" + count.incrementAndGet() + ")");
+					return t;
+				}
+			}, new ThreadPoolExecutor.AbortPolicy());
+			this.executor.allowCoreThreadTimeOut(true);
+		}
+
+		@Override
+		public void exec(Runnable code) {
+			executor.execute(code);
+		}
+
+		public int getActiveCount() {
+			return executor.getActiveCount();
+		}
+
+		public int getQueueSize() {
+			return executor.getQueue().size();
+		}
+
+		@Override
+		public void close() {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Threading strategy that starts a virtual thread per task. Only
+	 * available on JVMs with virtual thread support (Java 21+), see
+	 * {@link #isSupported()}.
+	 * <p/>
+	 * <p>
+	 * Virtual threads are cheap, but the upstream connections they end up
+	 * waiting on are not: with a positive <code>maxConcurrency</code> further
+	 * work is rejected with <i>503 Service Unavailable</i>.
+	 * </p>
+	 */
+	public static class VirtualThreadAsyncRunner implements AsyncRunner, Closeable {
+		private static final java.lang.reflect.Method NEW_EXECUTOR = lookupExecutorFactory();
+
+		private final ExecutorService executor;
+		private final Semaphore permits;
+
+		public VirtualThreadAsyncRunner(int maxConcurrency) {
+			if (!isSupported()) {
+				throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+			}
+			try {
+				this.executor = (ExecutorService) NEW_EXECUTOR.invoke(null);
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+			this.permits = maxConcurrency > 0 ? new Semaphore(maxConcurrency) : null;
+		}
+
+		public static boolean isSupported() {
+			return NEW_EXECUTOR != null;
+		}
+
+		private static java.lang.reflect.Method lookupExecutorFactory() {
+			try {
+				return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			} catch (NoSuchMethodException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public void exec(final Runnable code) {
+			if (permits == null) {
+				executor.execute(code);
+				return;
+			}
+			if (!permits.tryAcquire()) {
+				throw new RejectedExecutionException("Too many concurrent tasks");
+			}
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							code.run();
+						} finally {
+							permits.release();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				permits.release();
+				throw e;
+			}
+		}
+
+		@Override
+		public void close() {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Creates the preferred bounded strategy: a virtual thread per task where
+	 * the JVM supports it (limited to <code>maxThreads + queueCapacity</code>
+	 * concurrent tasks), a {@link PooledAsyncRunner} otherwise.
+	 */
+	public static AsyncRunner createBoundedAsyncRunner(int maxThreads, int queueCapacity) {
+		if (VirtualThreadAsyncRunner.isSupported()) {
+			return new VirtualThreadAsyncRunner(maxThreads + queueCapacity);
+		}
+		return new PooledAsyncRunner(maxThreads, queueCapacity);
+	}
+
 	/**
 	 * Default strategy for creating and cleaning up temporary files.
 	 * <p/>
@@ -547,6 +932,19 @@ public abstract class NanoHTTPD {
 		 * Use chunkedTransfer
 		 */
 		private boolean chunkedTransfer;
+		/**
+		 * Number of bytes in data, or -1 to rely on InputStream.available().
+		 */
+		private long contentLength = -1;
+		/**
+		 * Content of data if it is backed by an array, so it can be written
+		 * without copying.
+		 */
+		private byte[] bytes;
+		/**
+		 * Body bytes written by the last {@link #send(OutputStream)}.
+		 */
+		private long sentBytes;
 
 		/**
 		 * Default constructor: response = HTTP_OK, mime = MIME_HTML and your
@@ -565,6 +963,16 @@ public abstract class NanoHTTPD {
 			this.data = data;
 		}
 
+		/**
+		 * Constructor for streamed data whose size is known upfront, e.g.
+		 * content piped through from another connection. The stream is read
+		 * exactly once and closed after sending.
+		 */
+		public Response(IStatus status, String mimeType, InputStream data, long contentLength) {
+			this(status, mimeType, data);
+			this.contentLength = contentLength;
+		}
+
 		/**
 		 * Convenience method that makes an InputStream out of given text.
 		 */
@@ -572,7 +980,8 @@ public abstract class NanoHTTPD {
 			this.status = status;
 			this.mimeType = mimeType;
 			try {
-				this.data = txt != null ? new ByteArrayInputStream(txt.getBytes("UTF-8")) : null;
+				this.bytes = txt != null ? txt.getBytes("UTF-8") : null;
+				this.data = bytes != null ? new ByteArrayInputStream(bytes) : null;
 			} catch (java.io.UnsupportedEncodingException uee) {
 				uee.printStackTrace();
 			}
@@ -593,98 +1002,15 @@ public abstract class NanoHTTPD {
 		 * Sends given response to the socket.
 		 */
 		protected void send(OutputStream outputStream) {
-			String mime = mimeType;
-			SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-			gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-
+			if (status == null) {
+				throw new Error("sendResponse(): Status can't be null.");
+			}
 			try {
-				if (status == null) {
-					throw new Error("sendResponse(): Status can't be null.");
-				}
-				PrintWriter pw = new PrintWriter(outputStream);
-				pw.print("HTTP/1.1 " + status.getDescription() + " \r\n");
-
-				if (mime != null) {
-					pw.print("Content-Type: " + mime + "\r\n");
-				}
-
-				if (header == null || header.get("Date") == null) {
-					pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
-				}
-
-				if (header != null) {
-					for (String key : header.keySet()) {
-						String value = header.get(key);
-						pw.print(key + ": " + value + "\r\n");
-					}
-				}
-
-				sendConnectionHeaderIfNotAlreadyPresent(pw, header);
-
-				if (requestMethod != Method.HEAD && chunkedTransfer) {
-					sendAsChunked(outputStream, pw);
-				} else {
-					int pending = data != null ? data.available() : 0;
-					sendContentLengthHeaderIfNotAlreadyPresent(pw, header, pending);
-					pw.print("\r\n");
-					pw.flush();
-					sendAsFixedLength(outputStream, pending);
-				}
-				outputStream.flush();
-				safeClose(data);
+				ResponseWriter.get().send(this, outputStream);
 			} catch (IOException ioe) {
 				// Couldn't write? No can do.
-			}
-		}
-
-		protected void sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header, int size) {
-			if (!headerAlreadySent(header, "content-length")) {
-				pw.print("Content-Length: " + size + "\r\n");
-			}
-		}
-
-		protected void sendConnectionHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header) {
-			if (!headerAlreadySent(header, "connection")) {
-				pw.print("Connection: keep-alive\r\n");
-			}
-		}
-
-		private boolean headerAlreadySent(Map<String, String> header, String name) {
-			boolean alreadySent = false;
-			for (String headerName : header.keySet()) {
-				alreadySent |= headerName.equalsIgnoreCase(name);
-			}
-			return alreadySent;
-		}
-
-		private void sendAsChunked(OutputStream outputStream, PrintWriter pw) throws IOException {
-			pw.print("Transfer-Encoding: chunked\r\n");
-			pw.print("\r\n");
-			pw.flush();
-			int BUFFER_SIZE = 16 * 1024;
-			byte[] CRLF = "\r\n".getBytes();
-			byte[] buff = new byte[BUFFER_SIZE];
-			int read;
-			while ((read = data.read(buff)) > 0) {
-				outputStream.write(String.format("%x\r\n", read).getBytes());
-				outputStream.write(buff, 0, read);
-				outputStream.write(CRLF);
-			}
-			outputStream.write(String.format("0\r\n\r\n").getBytes());
-		}
-
-		private void sendAsFixedLength(OutputStream outputStream, int pending) throws IOException {
-			if (requestMethod != Method.HEAD && data != null) {
-				int BUFFER_SIZE = 16 * 1024;
-				byte[] buff = new byte[BUFFER_SIZE];
-				while (pending > 0) {
-					int read = data.read(buff, 0, ((pending > BUFFER_SIZE) ? BUFFER_SIZE : pending));
-					if (read <= 0) {
-						break;
-					}
-					outputStream.write(buff, 0, read);
-					pending -= read;
-				}
+			} finally {
+				safeClose(data);
 			}
 		}
 
@@ -710,6 +1036,8 @@ public abstract class NanoHTTPD {
 
 		public void setData(InputStream data) {
 			this.data = data;
+			this.bytes = null;
+			this.contentLength = -1;
 		}
 
 		public Method getRequestMethod() {
@@ -724,6 +1052,10 @@ public abstract class NanoHTTPD {
 			this.chunkedTransfer = chunkedTransfer;
 		}
 
+		long getSentBytes() {
+			return sentBytes;
+		}
+
 		public interface IStatus {
 			int getRequestStatus();
 
@@ -738,16 +1070,22 @@ public abstract class NanoHTTPD {
 					"Accepted"), NO_CONTENT(204, "No Content"), PARTIAL_CONTENT(206, "Partial Content"), REDIRECT(301,
 					"Moved Permanently"), NOT_MODIFIED(304, "Not Modified"), BAD_REQUEST(400, "Bad Request"), UNAUTHORIZED(
 					401, "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(
-					405, "Method Not Allowed"), RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"), INTERNAL_ERROR(
-					500, "Internal Server Error");
+					405, "Method Not Allowed"), PAYLOAD_TOO_LARGE(413, "Payload Too Large"), RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"), INTERNAL_ERROR(
+					500, "Internal Server Error"), SERVICE_UNAVAILABLE(503, "Service Unavailable");
 			private final int requestStatus;
 			private final String description;
 
 			Status(int requestStatus, String description) {
 				this.requestStatus = requestStatus;
 				this.description = description;
+				this.statusLine = ResponseWriter.statusLine(this);
 			}
 
+			/**
+			 * Pre-encoded status line, see {@link ResponseWriter}.
+			 */
+			private final byte[] statusLine;
+
 			@Override
 			public int getRequestStatus() {
 				return this.requestStatus;
@@ -760,105 +1098,1008 @@ public abstract class NanoHTTPD {
 		}
 	}
 
-	@SuppressWarnings("serial")
-	public static final class ResponseException extends Exception {
-
-		private final Response.Status status;
+	/**
+	 * Renders responses on the thread that sends them. The head is assembled in
+	 * a reused buffer from pre-encoded status lines and header fragments and a
+	 * Date header that is formatted at most once per second. Small bodies are
+	 * sent together with the head in a single write; in non-blocking mode
+	 * array-backed bodies are not copied at all but written together with the
+	 * head by a gathering write.
+	 */
+	static final class ResponseWriter {
+		private static final byte[] CRLF = { '\r', '\n' };
+		private static final byte[] COLON = { ':', ' ' };
+		private static final byte[] CONTENT_TYPE = "Content-Type: ".getBytes(US_ASCII);
+		private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(US_ASCII);
+		private static final byte[] CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n".getBytes(US_ASCII);
+		private static final byte[] TRANSFER_ENCODING_CHUNKED = "Transfer-Encoding: chunked\r\n\r\n"
+				.getBytes(US_ASCII);
+		private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(US_ASCII);
+		private static final byte[] HEX = "0123456789abcdef".getBytes(US_ASCII);
+		private static final int BUFFER_SIZE = 16 * 1024;
+
+		private static final ThreadLocal<ResponseWriter> WRITERS = new ThreadLocal<ResponseWriter>() {
+			@Override
+			protected ResponseWriter initialValue() {
+				return new ResponseWriter();
+			}
+		};
 
-		public ResponseException(Response.Status status, String message) {
-			super(message);
-			this.status = status;
-		}
+		private static volatile DateHeader dateHeader = new DateHeader(-1);
 
-		public ResponseException(Response.Status status, String message, Exception e) {
-			super(message, e);
-			this.status = status;
-		}
+		/**
+		 * Response head, followed by the body if it fits.
+		 */
+		private byte[] head = new byte[BUFFER_SIZE];
+		private int headLength;
+		/**
+		 * Copy buffer for streamed bodies.
+		 */
+		private final byte[] buffer = new byte[BUFFER_SIZE];
 
-		public Response.Status getStatus() {
-			return status;
+		static ResponseWriter get() {
+			return WRITERS.get();
 		}
-	}
 
-	/**
-	 * Default strategy for creating and cleaning up temporary files.
-	 */
-	private class DefaultTempFileManagerFactory implements TempFileManagerFactory {
-		@Override
-		public TempFileManager create() {
-			return new DefaultTempFileManager();
+		static byte[] statusLine(Response.IStatus status) {
+			return ("HTTP/1.1 " + status.getDescription() + " \r\n").getBytes(US_ASCII);
 		}
-	}
 
-	/**
-	 * Handles one session, i.e. parses the HTTP request and returns the
-	 * response.
-	 */
-	public interface IHTTPSession {
-		void execute() throws IOException;
+		void send(Response r, OutputStream outputStream) throws IOException {
+			headLength = 0;
+			append(r.status instanceof Response.Status ? ((Response.Status) r.status).statusLine : statusLine(r.status));
 
-		Map<String, String> getParms();
+			if (r.mimeType != null) {
+				append(CONTENT_TYPE);
+				append(r.mimeType);
+				append(CRLF);
+			}
 
-		Map<String, String> getHeaders();
+			if (!r.header.containsKey("Date")) {
+				append(currentDate());
+			}
 
-		/**
-		 * @return the path part of the URL.
-		 */
-		String getUri();
+			boolean hasConnection = false;
+			boolean hasContentLength = false;
+			for (Map.Entry<String, String> entry : r.header.entrySet()) {
+				String name = entry.getKey();
+				hasConnection |= name.equalsIgnoreCase("connection");
+				hasContentLength |= name.equalsIgnoreCase("content-length");
+				append(name);
+				append(COLON);
+				append(entry.getValue());
+				append(CRLF);
+			}
 
-		String getQueryParameterString();
+			if (!hasConnection) {
+				append(CONNECTION_KEEP_ALIVE);
+			}
 
-		Method getMethod();
+			if (r.requestMethod != Method.HEAD && r.chunkedTransfer) {
+				append(TRANSFER_ENCODING_CHUNKED);
+				r.sentBytes = sendAsChunked(r, outputStream);
+			} else {
+				long pending = r.bytes != null ? r.bytes.length : r.contentLength >= 0 ? r.contentLength
+						: r.data != null ? r.data.available() : 0;
+				if (!hasContentLength) {
+					append(CONTENT_LENGTH);
+					appendDecimal(pending);
+					append(CRLF);
+				}
+				append(CRLF);
+				r.sentBytes = sendAsFixedLength(r, outputStream, pending);
+			}
+			outputStream.flush();
+		}
+
+		private long sendAsChunked(Response r, OutputStream outputStream) throws IOException {
+			outputStream.write(head, 0, headLength);
+			long sent = 0;
+			int read;
+			while ((read = r.data.read(buffer, 2 * 8 + 2, buffer.length - (2 * 8 + 4))) > 0) {
+				// chunk size line in front of and CRLF behind the data
+				int start = 2 * 8;
+				buffer[start] = '\r';
+				buffer[start + 1] = '\n';
+				int size = read;
+				do {
+					buffer[--start] = HEX[size & 0xf];
+					size >>>= 4;
+				} while (size > 0);
+				int end = 2 * 8 + 2 + read;
+				buffer[end] = '\r';
+				buffer[end + 1] = '\n';
+				outputStream.write(buffer, start, end + 2 - start);
+				sent += read;
+			}
+			outputStream.write(LAST_CHUNK);
+			return sent;
+		}
+
+		private long sendAsFixedLength(Response r, OutputStream outputStream, long pending) throws IOException {
+			if (r.requestMethod == Method.HEAD || r.data == null || pending == 0) {
+				outputStream.write(head, 0, headLength);
+				return 0;
+			}
+
+			if (r.bytes != null) {
+				if (outputStream instanceof GatheringOutput) {
+					((GatheringOutput) outputStream).write(head, headLength, r.bytes);
+				} else if (headLength + r.bytes.length <= head.length) {
+					System.arraycopy(r.bytes, 0, head, headLength, r.bytes.length);
+					outputStream.write(head, 0, headLength + r.bytes.length);
+				} else {
+					outputStream.write(head, 0, headLength);
+					outputStream.write(r.bytes);
+				}
+				return r.bytes.length;
+			}
+
+			// fill up the head with the beginning of the body
+			int bodyStart = headLength;
+			long sent = 0;
+			while (pending > 0 && headLength < head.length) {
+				int read = r.data.read(head, headLength, (int) Math.min(pending, head.length - headLength));
+				if (read <= 0) {
+					pending = 0;
+					break;
+				}
+				headLength += read;
+				pending -= read;
+			}
+			outputStream.write(head, 0, headLength);
+			sent += headLength - bodyStart;
+
+			while (pending > 0) {
+				int read = r.data.read(buffer, 0, (int) Math.min(pending, buffer.length));
+				if (read <= 0) {
+					break;
+				}
+				outputStream.write(buffer, 0, read);
+				pending -= read;
+				sent += read;
+			}
+			return sent;
+		}
+
+		private void append(byte[] bytes) {
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, head, headLength, bytes.length);
+			headLength += bytes.length;
+		}
+
+		private void append(String value) {
+			int length = value.length();
+			ensureCapacity(length);
+			for (int i = 0; i < length; i++) {
+				char c = value.charAt(i);
+				if (c >= 0x80) {
+					// rare, fall back to the encoder
+					append(value.substring(i).getBytes(UTF_8));
+					return;
+				}
+				head[headLength++] = (byte) c;
+			}
+		}
+
+		private void appendDecimal(long value) {
+			ensureCapacity(20);
+			if (value == 0) {
+				head[headLength++] = '0';
+				return;
+			}
+			int start = headLength;
+			while (value > 0) {
+				head[headLength++] = (byte) ('0' + value % 10);
+				value /= 10;
+			}
+			for (int i = start, j = headLength - 1; i < j; i++, j--) {
+				byte b = head[i];
+				head[i] = head[j];
+				head[j] = b;
+			}
+		}
+
+		private void ensureCapacity(int length) {
+			if (headLength + length > head.length) {
+				head = Arrays.copyOf(head, Math.max(head.length * 2, headLength + length));
+			}
+		}
+
+		static byte[] currentDate() {
+			long second = System.currentTimeMillis() / 1000;
+			DateHeader header = dateHeader;
+			if (header.second != second) {
+				header = new DateHeader(second);
+				dateHeader = header;
+			}
+			return header.line;
+		}
+
+		/**
+		 * Formatted Date header line, valid for one second.
+		 */
+		static final class DateHeader {
+			private static final SimpleDateFormat FORMAT = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'",
+					Locale.US);
+			static {
+				FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
+			}
+
+			final long second;
+			final byte[] line;
+
+			DateHeader(long second) {
+				this.second = second;
+				String date;
+				synchronized (FORMAT) {
+					date = FORMAT.format(new Date(second * 1000));
+				}
+				this.line = ("Date: " + date + "\r\n").getBytes(US_ASCII);
+			}
+		}
+	}
+
+	/**
+	 * Output that takes a rendered head and an array-backed body without
+	 * copying the body.
+	 */
+	private interface GatheringOutput {
+		void write(byte[] head, int headLength, byte[] body) throws IOException;
+	}
+
+	@SuppressWarnings("serial")
+	public static final class ResponseException extends Exception {
+
+		private final Response.Status status;
+
+		public ResponseException(Response.Status status, String message) {
+			super(message);
+			this.status = status;
+		}
+
+		public ResponseException(Response.Status status, String message, Exception e) {
+			super(message, e);
+			this.status = status;
+		}
+
+		public Response.Status getStatus() {
+			return status;
+		}
+	}
+
+	/**
+	 * Default strategy for creating and cleaning up temporary files.
+	 */
+	private class DefaultTempFileManagerFactory implements TempFileManagerFactory {
+		@Override
+		public TempFileManager create() {
+			return new DefaultTempFileManager();
+		}
+	}
+
+	/**
+	 * Find byte index separating header from body. It must be the last byte of
+	 * the first two sequential new lines.
+	 */
+	static int findHeaderEnd(final byte[] buf, int rlen) {
+		return findHeaderEnd(buf, 0, rlen);
+	}
+
+	static int findHeaderEnd(final byte[] buf, int from, int rlen) {
+		int splitbyte = from;
+		while (splitbyte + 3 < rlen) {
+			if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && buf[splitbyte + 2] == '\r'
+					&& buf[splitbyte + 3] == '\n') {
+				return splitbyte + 4;
+			}
+			splitbyte++;
+		}
+		return 0;
+	}
+
+	/**
+	 * Looks up a header value directly in the raw request head without
+	 * decoding the whole header block.
+	 *
+	 * @return the trimmed value or <code>null</code> if the header is absent.
+	 */
+	private static String findHeaderValue(final byte[] buf, int headerEnd, String name) {
+		int lineStart = 0;
+		while (lineStart < headerEnd) {
+			int lineEnd = lineStart;
+			while (lineEnd < headerEnd && buf[lineEnd] != '\r' && buf[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			if (lineStart > 0 && lineEnd - lineStart > name.length() && buf[lineStart + name.length()] == ':'
+					&& regionMatchesIgnoreCase(buf, lineStart, name)) {
+				int valueStart = lineStart + name.length() + 1;
+				while (valueStart < lineEnd && buf[valueStart] == ' ') {
+					valueStart++;
+				}
+				int valueEnd = lineEnd;
+				while (valueEnd > valueStart && buf[valueEnd - 1] == ' ') {
+					valueEnd--;
+				}
+				return new String(buf, valueStart, valueEnd - valueStart, US_ASCII);
+			}
+			lineStart = lineEnd + 1;
+		}
+		return null;
+	}
+
+	private static int indexOf(final byte[] buf, int from, int end, char c) {
+		for (int i = from; i < end; i++) {
+			if (buf[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static long parseLong(final byte[] buf, int start, int end) {
+		if (start == end || end - start > 18) {
+			throw new NumberFormatException(new String(buf, start, end - start, US_ASCII));
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException(new String(buf, start, end - start, US_ASCII));
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private static boolean regionMatchesIgnoreCase(final byte[] buf, int offset, String lowerCaseName) {
+		for (int i = 0; i < lowerCaseName.length(); i++) {
+			int c = buf[offset + i];
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			if (c != lowerCaseName.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// -------------------------------------------------------------------------------
+	// //
+	//
+	// Non-blocking mode.
+	//
+	// -------------------------------------------------------------------------------
+	// //
+
+	/**
+	 * Accepts connections and reads requests on a single thread. Once a request
+	 * (header and body) has been buffered completely it is handed to the
+	 * {@link AsyncRunner}; the rendered response is then written back on the
+	 * selector thread again.
+	 */
+	private final class SelectorLoop implements Runnable {
+		private static final int SELECT_TIMEOUT = 1000;
+
+		private final ServerSocketChannel serverChannel;
+		private final Selector selector;
+		private final Queue<NioConnection> completed = new ConcurrentLinkedQueue<NioConnection>();
+
+		SelectorLoop(ServerSocketChannel serverChannel, Selector selector) {
+			this.serverChannel = serverChannel;
+			this.selector = selector;
+		}
+
+		void wakeup() {
+			selector.wakeup();
+		}
+
+		void complete(NioConnection connection) {
+			completed.add(connection);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+				long lastSweep = System.currentTimeMillis();
+				while (serverChannel.isOpen()) {
+					selector.select(SELECT_TIMEOUT);
+
+					NioConnection connection;
+					while ((connection = completed.poll()) != null) {
+						connection.startWriting();
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							handle(key);
+						}
+					}
+
+					long now = System.currentTimeMillis();
+					if (now - lastSweep >= SELECT_TIMEOUT) {
+						closeIdleConnections(now);
+						lastSweep = now;
+					}
+				}
+			} catch (IOException e) {
+				if (serverChannel.isOpen()) {
+					logger.warn(String.format("Selector loop stopped, closing all connections. Error: %s", e));
+				}
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					if (key.attachment() instanceof NioConnection) {
+						((NioConnection) key.attachment()).close();
+					}
+				}
+				safeClose(serverChannel);
+				safeClose(selector);
+			}
+		}
+
+		private void accept() throws IOException {
+			SocketChannel channel;
+			while ((channel = serverChannel.accept()) != null) {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				registerConnection(channel.socket());
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				key.attach(new NioConnection(channel, key));
+			}
+		}
+
+		private void handle(SelectionKey key) {
+			NioConnection connection = (NioConnection) key.attachment();
+			try {
+				if (key.isReadable()) {
+					connection.read();
+				} else if (key.isWritable()) {
+					connection.write();
+				}
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+
+		private void closeIdleConnections(long now) {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof NioConnection) {
+					NioConnection connection = (NioConnection) key.attachment();
+					if (connection.isIdleSince(now - NON_BLOCKING_IDLE_TIMEOUT)) {
+						connection.close();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * State of one connection in non-blocking mode. All fields are owned by the
+	 * selector thread, except while a request is being processed: then reading
+	 * is suspended and the worker has exclusive access.
+	 */
+	private final class NioConnection implements Flushable {
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private final TempFileManager tempFiles = tempFileManagerFactory.create();
+		/**
+		 * Closes the spooled body before the request's temp files are
+		 * deleted.
+		 */
+		private final TempFileManager tempFileManager = new TempFileManager() {
+			@Override
+			public TempFile createTempFile() throws Exception {
+				return tempFiles.createTempFile();
+			}
+
+			@Override
+			public void clear() {
+				safeClose(spooledBody);
+				safeClose(spool);
+				spooledBody = null;
+				spool = null;
+				spoolFile = null;
+				tempFiles.clear();
+			}
+		};
+		private byte[] in = new byte[HTTPSession.BUFSIZE];
+		private int inLength;
+		/**
+		 * Bytes of the current request kept in <code>in</code>: the head and,
+		 * unless it is spooled, the body.
+		 */
+		private int requestLength;
+		/**
+		 * Temp file receiving a body larger than {@link #MEMORY_STORE_LIMIT},
+		 * and the number of body bytes still to be written to it.
+		 */
+		private TempFile spoolFile;
+		private OutputStream spool;
+		private long spoolRemaining;
+		private InputStream spooledBody;
+		private boolean closeAfterResponse;
+		private boolean busy;
+		private final RequestBytes request = new RequestBytes();
+		private final ResponseBuffer response = new ResponseBuffer(this);
+		private final HTTPSession session;
+		private ByteBuffer[] out;
+		/**
+		 * Set while the rendering thread waits for a part of a large
+		 * response to be written, see {@link #flush()}.
+		 */
+		private volatile boolean flushing;
+		private long lastActivity = System.currentTimeMillis();
+
+		NioConnection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+			this.session = new HTTPSession(tempFileManager, request, response, channel.socket().getInetAddress());
+		}
+
+		boolean isIdleSince(long time) {
+			return !busy && lastActivity < time;
+		}
+
+		void read() throws IOException {
+			int read = channel.read(ByteBuffer.wrap(in, inLength, in.length - inLength));
+			if (read == -1) {
+				close();
+				return;
+			}
+			inLength += read;
+			lastActivity = System.currentTimeMillis();
+			frame();
+		}
+
+		/**
+		 * Determines the extent of the next request and dispatches it once it
+		 * has been received completely.
+		 */
+		private void frame() throws IOException {
+			if (requestLength == 0) {
+				int headerEnd = findHeaderEnd(in, inLength);
+				if (headerEnd == 0) {
+					if (inLength >= HTTPSession.BUFSIZE) {
+						// same limit as the blocking mode
+						closeAfterResponse = true;
+						respond(new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+								"BAD REQUEST: Request header too large."));
+					}
+					return;
+				}
+
+				long contentLength = 0;
+				String value = findHeaderValue(in, headerEnd, "content-length");
+				if (value != null) {
+					try {
+						contentLength = Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						contentLength = -1;
+					}
+				}
+				if (contentLength < 0) {
+					closeAfterResponse = true;
+					respond(new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+							"BAD REQUEST: Invalid Content-Length."));
+					return;
+				}
+				if (contentLength > maxRequestSize) {
+					closeAfterResponse = true;
+					respond(newPayloadTooLargeResponse());
+					return;
+				}
+				closeAfterResponse = "close".equalsIgnoreCase(findHeaderValue(in, headerEnd, "connection"));
+				if (contentLength > MEMORY_STORE_LIMIT) {
+					requestLength = headerEnd;
+					startSpooling(contentLength);
+				} else {
+					requestLength = headerEnd + (int) contentLength;
+					if (requestLength > in.length) {
+						in = Arrays.copyOf(in, requestLength);
+					}
+				}
+			}
+
+			if (spool != null) {
+				// move the body out of the buffer, keeping pipelined bytes
+				int body = (int) Math.min(spoolRemaining, inLength - requestLength);
+				spool.write(in, requestLength, body);
+				System.arraycopy(in, requestLength + body, in, requestLength, inLength - requestLength - body);
+				inLength -= body;
+				spoolRemaining -= body;
+				if (spoolRemaining > 0) {
+					return;
+				}
+				spool.close();
+				spool = null;
+			}
+
+			if (inLength >= requestLength) {
+				dispatch();
+			}
+		}
+
+		private void startSpooling(long contentLength) throws IOException {
+			try {
+				spoolFile = tempFileManager.createTempFile();
+				spool = spoolFile.open();
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+			spoolRemaining = contentLength;
+			// leave room to read the body through the buffer
+			if (in.length < requestLength + HTTPSession.BUFSIZE) {
+				in = Arrays.copyOf(in, requestLength + HTTPSession.BUFSIZE);
+			}
+		}
+
+		private void dispatch() throws IOException {
+			busy = true;
+			key.interestOps(0);
+			try {
+				asyncRunner.exec(new Runnable() {
+					@Override
+					public void run() {
+						process();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				closeAfterResponse = true;
+				respond(newServiceUnavailableResponse());
+			}
+		}
+
+		/**
+		 * Runs on the worker thread. The request may complete later on another
+		 * thread, see {@link NanoHTTPD#serveAsync(IHTTPSession, ResponseCallback)}.
+		 */
+		private void process() {
+			try {
+				request.reset(in, requestLength);
+				if (spoolFile != null) {
+					spooledBody = new FileInputStream(spoolFile.getName());
+					session.setInput(new SequenceInputStream(request, spooledBody));
+				} else {
+					session.setInput(request);
+				}
+				session.execute(new Runnable() {
+					@Override
+					public void run() {
+						selectorLoop.complete(NioConnection.this);
+					}
+				});
+			} catch (Exception e) {
+				logger.debug(String.format("Failed to process request, closing the connection. Error: %s", e));
+				tempFileManager.clear();
+				response.reset();
+				closeAfterResponse = true;
+				selectorLoop.complete(this);
+			}
+		}
+
+		private void respond(Response r) throws IOException {
+			busy = true;
+			response.reset();
+			r.send(response);
+			startWriting();
+		}
+
+		/**
+		 * Runs on the thread rendering a large response: hands the part
+		 * rendered so far to the selector and waits until it has been
+		 * written, so a streamed body is never held in memory as a whole.
+		 */
+		@Override
+		public void flush() throws IOException {
+			if (Thread.currentThread() == myThread) {
+				// an error response rendered by the selector itself
+				return;
+			}
+			flushing = true;
+			selectorLoop.complete(this);
+			synchronized (this) {
+				while (flushing && channel.isOpen()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+				}
+			}
+			if (flushing) {
+				throw new SocketException("Connection closed");
+			}
+			response.reset();
+		}
+
+		/**
+		 * Runs on the selector thread once the response, or a part of it, has
+		 * been rendered.
+		 */
+		void startWriting() {
+			if (!channel.isOpen()) {
+				return;
+			}
+			out = response.toByteBuffers();
+			key.interestOps(SelectionKey.OP_WRITE);
+			try {
+				write();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		void write() throws IOException {
+			channel.write(out);
+			lastActivity = System.currentTimeMillis();
+			for (ByteBuffer buffer : out) {
+				if (buffer.hasRemaining()) {
+					return;
+				}
+			}
+
+			out = null;
+			if (flushing) {
+				// the rest of the response is still being rendered
+				key.interestOps(0);
+				synchronized (this) {
+					flushing = false;
+					notifyAll();
+				}
+				return;
+			}
+			if (closeAfterResponse) {
+				close();
+				return;
+			}
+
+			// keep pipelined bytes, give back memory of large requests/responses
+			int remaining = inLength - requestLength;
+			if (in.length > HTTPSession.BUFSIZE && remaining <= HTTPSession.BUFSIZE) {
+				byte[] buf = new byte[HTTPSession.BUFSIZE];
+				System.arraycopy(in, requestLength, buf, 0, remaining);
+				in = buf;
+			} else {
+				System.arraycopy(in, requestLength, in, 0, remaining);
+			}
+			inLength = remaining;
+			requestLength = 0;
+			response.recycle();
+
+			busy = false;
+			key.interestOps(SelectionKey.OP_READ);
+			frame();
+		}
+
+		void close() {
+			key.cancel();
+			safeClose(channel);
+			unRegisterConnection(channel.socket());
+			synchronized (this) {
+				notifyAll();
+			}
+			tempFileManager.clear();
+		}
+	}
+
+	/**
+	 * Collects a rendered response so it can be written without blocking.
+	 * Streamed bodies are handed to the connection whenever
+	 * {@link #RETAINED_CAPACITY} bytes have been collected.
+	 */
+	private static final class ResponseBuffer extends OutputStream implements GatheringOutput {
+		static final int RETAINED_CAPACITY = 64 * 1024;
+		private static final byte[] EMPTY = new byte[0];
+
+		private final Flushable connection;
+		private byte[] buf = new byte[HTTPSession.BUFSIZE];
+		private int count;
+		/**
+		 * Body that is not copied into the buffer but sent right after it.
+		 */
+		private byte[] body = EMPTY;
+
+		ResponseBuffer(Flushable connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			append(new byte[] { (byte) b }, 0, 1);
+			flushIfFull();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			append(b, off, len);
+			flushIfFull();
+		}
+
+		@Override
+		public void write(byte[] head, int headLength, byte[] body) {
+			append(head, 0, headLength);
+			this.body = body;
+		}
+
+		private void append(byte[] b, int off, int len) {
+			if (count + len > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + len));
+			}
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+
+		private void flushIfFull() throws IOException {
+			if (count >= RETAINED_CAPACITY) {
+				connection.flush();
+			}
+		}
+
+		void reset() {
+			count = 0;
+			body = EMPTY;
+		}
+
+		/**
+		 * Empties the buffer and gives back the memory of large responses.
+		 */
+		void recycle() {
+			if (buf.length > RETAINED_CAPACITY) {
+				buf = new byte[HTTPSession.BUFSIZE];
+			}
+			reset();
+		}
+
+		ByteBuffer[] toByteBuffers() {
+			return new ByteBuffer[] { ByteBuffer.wrap(buf, 0, count), ByteBuffer.wrap(body) };
+		}
+	}
+
+	/**
+	 * Exposes the bytes of one buffered request to the {@link HTTPSession}
+	 * without copying them.
+	 */
+	private static final class RequestBytes extends ByteArrayInputStream {
+		RequestBytes() {
+			super(new byte[0]);
+		}
+
+		void reset(byte[] buf, int length) {
+			this.buf = buf;
+			this.pos = 0;
+			this.mark = 0;
+			this.count = length;
+		}
+	}
+
+	/**
+	 * Handles one session, i.e. parses the HTTP request and returns the
+	 * response.
+	 */
+	public interface IHTTPSession {
+		void execute() throws IOException;
+
+		Map<String, String> getParms();
+
+		Map<String, String> getHeaders();
+
+		/**
+		 * @return the path part of the URL.
+		 */
+		String getUri();
+
+		String getQueryParameterString();
+
+		Method getMethod();
 
 		InputStream getInputStream();
 
 		CookieHandler getCookies();
 
 		String readBody();
+
+		/**
+		 * @return the number of body bytes still to be read from
+		 *         {@link #getInputStream()}, taken from the Content-Length
+		 *         header.
+		 */
+		long getBodySize();
+
+		/**
+		 * @return the value of a single header (case insensitive), without
+		 *         decoding all of them into {@link #getHeaders()}.
+		 */
+		String getHeader(String name);
 	}
 
 	protected class HTTPSession implements IHTTPSession {
 		public static final int BUFSIZE = 8192;
 		private final TempFileManager tempFileManager;
 		private final OutputStream outputStream;
-		private PushbackInputStream inputStream;
+		private final RequestInputStream inputStream;
+		/**
+		 * Holds the request head; reused for every request on the connection.
+		 * Header names and values are only turned into strings on demand.
+		 */
+		final byte[] buf = new byte[BUFSIZE];
+		private final String remoteIp;
 		private int splitbyte;
 		private int rlen;
 		private String uri;
 		private Method method;
+		private int queryStart;
+		private int queryEnd;
+		/**
+		 * Start and end offsets of name and value of each header in buf.
+		 */
+		private int[] headerOffsets = new int[4 * 16];
+		private int headerCount;
+		private long bodySize;
 		private Map<String, String> parms;
 		private Map<String, String> headers;
 		private CookieHandler cookies;
 		private String queryParameterString;
+		private final BlockingResponse blockingResponse = new BlockingResponse();
 
 		public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
 			this.tempFileManager = tempFileManager;
-			this.inputStream = new PushbackInputStream(inputStream, BUFSIZE);
+			this.inputStream = new RequestInputStream(inputStream);
 			this.outputStream = outputStream;
+			this.remoteIp = null;
 		}
 
 		public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream,
 				InetAddress inetAddress) {
 			this.tempFileManager = tempFileManager;
-			this.inputStream = new PushbackInputStream(inputStream, BUFSIZE);
+			this.inputStream = new RequestInputStream(inputStream);
 			this.outputStream = outputStream;
-			String remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1"
+			this.remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1"
 					: inetAddress.getHostAddress().toString();
-			headers = new HashMap<String, String>();
+		}
 
-			headers.put("remote-addr", remoteIp);
-			headers.put("http-client-ip", remoteIp);
+		/**
+		 * Replaces the stream the next request is read from, dropping anything
+		 * left over from the previous one.
+		 */
+		void setInput(InputStream in) {
+			inputStream.setSource(in);
 		}
 
 		@Override
 		public void execute() throws IOException {
+			execute(null);
+		}
+
+		/**
+		 * Reads one request and hands it to
+		 * {@link NanoHTTPD#serveAsync(IHTTPSession, ResponseCallback)}.
+		 * Without a completion listener the calling thread waits for the
+		 * response and sends it. Otherwise the response is sent by whichever
+		 * thread completes it, followed by <code>done</code>. If this method
+		 * throws, <code>done</code> is not invoked.
+		 */
+		void execute(final Runnable done) throws IOException {
+			boolean completesLater = false;
 			try {
 				// Read the first 8192 bytes.
 				// The full header should fit in here.
 				// Apache's default header limit is 8KB.
 				// Do NOT assume that a single read will get the entire header
 				// at once!
-				byte[] buf = new byte[BUFSIZE];
 				splitbyte = 0;
 				rlen = 0;
 				{
@@ -877,8 +2118,9 @@ public abstract class NanoHTTPD {
 						throw new SocketException("NanoHttpd Shutdown");
 					}
 					while (read > 0) {
+						int scanned = Math.max(0, rlen - 3);
 						rlen += read;
-						splitbyte = findHeaderEnd(buf, rlen);
+						splitbyte = findHeaderEnd(buf, scanned, rlen);
 						if (splitbyte > 0)
 							break;
 						read = inputStream.read(buf, rlen, BUFSIZE - rlen);
@@ -889,36 +2131,49 @@ public abstract class NanoHTTPD {
 					inputStream.unread(buf, splitbyte, rlen - splitbyte);
 				}
 
-				parms = new HashMap<String, String>();
-				if (null == headers) {
-					headers = new HashMap<String, String>();
-				}
+				parms = null;
+				headers = null;
+				cookies = null;
+				queryParameterString = null;
+				bodySize = -1;
 
-				// Create a BufferedReader for parsing the header.
-				BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, rlen)));
+				// Decode the request line and index the headers
+				decodeHeader(splitbyte > 0 ? splitbyte : rlen);
 
-				// Decode the header into parms and header java properties
-				Map<String, String> pre = new HashMap<String, String>();
-				decodeHeader(hin, pre, parms, headers);
-
-				method = Method.lookup(pre.get("method"));
 				if (method == null) {
 					throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
 				}
 
-				uri = pre.get("uri");
+				try {
+					if (getBodySize() > maxRequestSize) {
+						throw new ResponseException(Response.Status.PAYLOAD_TOO_LARGE,
+								"PAYLOAD TOO LARGE: Request body exceeds " + maxRequestSize + " bytes.");
+					}
+				} catch (NumberFormatException e) {
+					throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Invalid Content-Length.");
+				}
 
-				cookies = new CookieHandler(headers);
+				inputStream.startBody();
 
 				// Ok, now do the serve()
-				Response r = serve(this);
-				if (r == null) {
-					throw new ResponseException(Response.Status.INTERNAL_ERROR,
-							"SERVER INTERNAL ERROR: Serve() returned a null response.");
+				if (done == null) {
+					blockingResponse.reset();
+					serveAsync(this, blockingResponse);
+					sendResponse(blockingResponse.await());
 				} else {
-					cookies.unloadQueue(r);
-					r.setRequestMethod(method);
-					r.send(outputStream);
+					serveAsync(this, new ResponseCallback() {
+						@Override
+						public void respond(Response response) {
+							try {
+								sendResponse(response);
+							} catch (IOException ignored) {
+							} finally {
+								tempFileManager.clear();
+								done.run();
+							}
+						}
+					});
+					completesLater = true;
 				}
 			} catch (SocketException e) {
 				// throw it out to close socket object (finalAccept)
@@ -934,9 +2189,76 @@ public abstract class NanoHTTPD {
 				Response r = new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
 				r.send(outputStream);
 				safeClose(outputStream);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SocketException("NanoHttpd Shutdown");
 			} finally {
-				tempFileManager.clear();
+				if (!completesLater) {
+					tempFileManager.clear();
+				}
+			}
+			if (!completesLater && done != null) {
+				done.run();
+			}
+		}
+
+		private void sendResponse(Response r) throws IOException {
+			if (r == null) {
+				r = new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+						"SERVER INTERNAL ERROR: Serve() returned a null response.");
+			}
+			if (cookies != null) {
+				cookies.unloadQueue(r);
+			}
+			r.setRequestMethod(method);
+			r.send(outputStream);
+			skipUnreadBody();
+		}
+
+		/**
+		 * Discards whatever part of the body serve() did not read, so the next
+		 * request on a keep-alive connection starts at the right offset.
+		 */
+		private void skipUnreadBody() throws IOException {
+			long remaining = getBodySize() - inputStream.bodyBytesRead();
+			while (remaining > 0) {
+				long skipped = inputStream.skip(remaining);
+				if (skipped <= 0) {
+					if (inputStream.read() == -1) {
+						break;
+					}
+					skipped = 1;
+				}
+				remaining -= skipped;
+			}
+		}
+
+		/**
+		 * Without a Content-Length the body is empty, so that a pipelined
+		 * request already buffered behind it is not taken for the body. Only
+		 * a chunked body, which is not decoded, is assumed to be what has
+		 * been received with the head.
+		 */
+		@Override
+		public long getBodySize() {
+			if (bodySize < 0) {
+				int header = findHeader("content-length");
+				if (header >= 0) {
+					bodySize = parseLong(buf, headerOffsets[header + 2], headerOffsets[header + 3]);
+				} else if (splitbyte < rlen && isChunked()) {
+					bodySize = rlen - splitbyte;
+				} else {
+					bodySize = 0;
+				}
 			}
+			return bodySize;
+		}
+
+		private boolean isChunked() {
+			int header = findHeader("transfer-encoding");
+			return header >= 0
+					&& new String(buf, headerOffsets[header + 2], headerOffsets[header + 3] - headerOffsets[header + 2],
+							US_ASCII).toLowerCase(Locale.US).contains("chunked");
 		}
 
 		// TestObject modifications - now only post text is accepted (lb)
@@ -945,14 +2267,7 @@ public abstract class NanoHTTPD {
 			BufferedReader in = null;
 			try {
 
-				long size;
-				if (headers.containsKey("content-length")) {
-					size = Integer.parseInt(headers.get("content-length"));
-				} else if (splitbyte < rlen) {
-					size = rlen - splitbyte;
-				} else {
-					size = 0;
-				}
+				long size = getBodySize();
 
 				ByteArrayOutputStream bo = new ByteArrayOutputStream();
 
@@ -979,77 +2294,125 @@ public abstract class NanoHTTPD {
 		}
 
 		/**
-		 * Decodes the sent headers and loads the data into Key/value pairs
+		 * Decodes the request line and records where each header line's name
+		 * and value are located in buf.
 		 */
-		private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, String> parms,
-				Map<String, String> headers) throws ResponseException {
-			try {
-				// Read the request line
-				String inLine = in.readLine();
-				if (inLine == null) {
+		void decodeHeader(int headerEnd) throws ResponseException {
+			headerCount = 0;
+			queryStart = -1;
+			queryEnd = -1;
+
+			// Read the request line
+			int lineEnd = lineEnd(0, headerEnd);
+			int p = skipWhitespace(0, lineEnd);
+			int methodEnd = tokenEnd(p, lineEnd);
+			if (methodEnd == p) {
+				method = null;
+				if (headerEnd == 0) {
 					return;
 				}
+				throw new ResponseException(Response.Status.BAD_REQUEST,
+						"BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+			}
 
-				StringTokenizer st = new StringTokenizer(inLine);
-				if (!st.hasMoreTokens()) {
-					throw new ResponseException(Response.Status.BAD_REQUEST,
-							"BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-				}
-
-				pre.put("method", st.nextToken());
+			method = Method.lookup(buf, p, methodEnd - p);
 
-				if (!st.hasMoreTokens()) {
-					throw new ResponseException(Response.Status.BAD_REQUEST,
-							"BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-				}
+			int uriStart = skipWhitespace(methodEnd, lineEnd);
+			if (uriStart == lineEnd) {
+				throw new ResponseException(Response.Status.BAD_REQUEST,
+						"BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+			}
+			int uriEnd = tokenEnd(uriStart, lineEnd);
+
+			// Decode parameters from the URI lazily, see getParms()
+			int qmi = indexOf(buf, uriStart, uriEnd, '?');
+			if (qmi >= 0) {
+				queryStart = qmi + 1;
+				queryEnd = uriEnd;
+				uri = decodeUri(uriStart, qmi);
+			} else {
+				uri = decodeUri(uriStart, uriEnd);
+			}
 
-				String uri = st.nextToken();
+			// If there's another token, it's protocol version,
+			// followed by HTTP headers. Ignore version but parse headers.
+			if (skipWhitespace(uriEnd, lineEnd) == lineEnd) {
+				return;
+			}
 
-				// Decode parameters from the URI
-				int qmi = uri.indexOf('?');
-				if (qmi >= 0) {
-					decodeParms(uri.substring(qmi + 1), parms);
-					uri = decodePercent(uri.substring(0, qmi));
-				} else {
-					uri = decodePercent(uri);
+			int lineStart = lineEnd + 1;
+			while (lineStart < headerEnd) {
+				lineEnd = lineEnd(lineStart, headerEnd);
+				int nameStart = skipWhitespace(lineStart, lineEnd);
+				if (nameStart == lineEnd) {
+					break;
 				}
-
-				// If there's another token, it's protocol version,
-				// followed by HTTP headers. Ignore version but parse headers.
-				// NOTE: this now forces header names lowercase since they are
-				// case insensitive and vary by client.
-				if (st.hasMoreTokens()) {
-					String line = in.readLine();
-					while (line != null && line.trim().length() > 0) {
-						int p = line.indexOf(':');
-						if (p >= 0)
-							headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1)
-									.trim());
-						line = in.readLine();
+				int colon = indexOf(buf, nameStart, lineEnd, ':');
+				if (colon >= 0) {
+					if (headerOffsets.length == headerCount * 4) {
+						headerOffsets = Arrays.copyOf(headerOffsets, headerOffsets.length * 2);
 					}
+					int i = headerCount * 4;
+					headerOffsets[i] = nameStart;
+					headerOffsets[i + 1] = trimEnd(nameStart, colon);
+					headerOffsets[i + 2] = skipWhitespace(colon + 1, lineEnd);
+					headerOffsets[i + 3] = trimEnd(headerOffsets[i + 2], lineEnd);
+					headerCount++;
 				}
+				lineStart = lineEnd + 1;
+			}
+		}
 
-				pre.put("uri", uri);
-			} catch (IOException ioe) {
-				throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: "
-						+ ioe.getMessage(), ioe);
+		/**
+		 * @return the index of the line feed ending the line, or end. A
+		 *         preceding carriage return is not part of the line.
+		 */
+		private int lineEnd(int from, int end) {
+			int i = indexOf(buf, from, end, '\n');
+			return i >= 0 ? i : end;
+		}
+
+		private int skipWhitespace(int from, int end) {
+			while (from < end && buf[from] <= ' ') {
+				from++;
 			}
+			return from;
+		}
+
+		private int trimEnd(int start, int end) {
+			while (end > start && buf[end - 1] <= ' ') {
+				end--;
+			}
+			return end;
+		}
+
+		private int tokenEnd(int from, int end) {
+			while (from < end && buf[from] > ' ') {
+				from++;
+			}
+			return from;
+		}
+
+		private String decodeUri(int start, int end) {
+			for (int i = start; i < end; i++) {
+				if (buf[i] == '%' || buf[i] == '+') {
+					return decodePercent(new String(buf, start, end - start, US_ASCII));
+				}
+			}
+			return new String(buf, start, end - start, US_ASCII);
 		}
 
 		/**
-		 * Find byte index separating header from body. It must be the last byte
-		 * of the first two sequential new lines.
+		 * @return the offset of the header in headerOffsets, or -1.
 		 */
-		private int findHeaderEnd(final byte[] buf, int rlen) {
-			int splitbyte = 0;
-			while (splitbyte + 3 < rlen) {
-				if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && buf[splitbyte + 2] == '\r'
-						&& buf[splitbyte + 3] == '\n') {
-					return splitbyte + 4;
+		private int findHeader(String lowerCaseName) {
+			for (int i = 0; i < headerCount * 4; i += 4) {
+				if (headerOffsets[i + 1] - headerOffsets[i] == lowerCaseName.length()
+						&& regionMatchesIgnoreCase(buf, headerOffsets[i], lowerCaseName)) {
+					return i;
 				}
-				splitbyte++;
 			}
-			return 0;
+			return -1;
 		}
 
 		/**
@@ -1058,7 +2421,7 @@ public abstract class NanoHTTPD {
 		 * Map. NOTE: this doesn't support multiple identical keys due to the
 		 * simplicity of Map.
 		 */
-		private void decodeParms(String parms, Map<String, String> p) {
+		void decodeParms(String parms, Map<String, String> p) {
 			if (parms == null) {
 				queryParameterString = "";
 				return;
@@ -1079,18 +2442,59 @@ public abstract class NanoHTTPD {
 
 		@Override
 		public final Map<String, String> getParms() {
+			if (parms == null) {
+				parms = new HashMap<String, String>();
+				if (queryStart >= 0) {
+					decodeParms(getQueryParameterString(), parms);
+				}
+			}
 			return parms;
 		}
 
 		public String getQueryParameterString() {
+			if (queryParameterString == null && queryStart >= 0) {
+				queryParameterString = new String(buf, queryStart, queryEnd - queryStart, US_ASCII);
+			}
 			return queryParameterString;
 		}
 
+		/**
+		 * All headers with lower case names. Built on first access; prefer
+		 * {@link #getHeader(String)} for single lookups.
+		 */
 		@Override
 		public final Map<String, String> getHeaders() {
+			if (headers == null) {
+				headers = new HashMap<String, String>();
+				if (remoteIp != null) {
+					headers.put("remote-addr", remoteIp);
+					headers.put("http-client-ip", remoteIp);
+				}
+				for (int i = 0; i < headerCount * 4; i += 4) {
+					headers.put(
+							new String(buf, headerOffsets[i], headerOffsets[i + 1] - headerOffsets[i], ISO_8859_1)
+									.toLowerCase(Locale.US),
+							new String(buf, headerOffsets[i + 2], headerOffsets[i + 3] - headerOffsets[i + 2],
+									ISO_8859_1));
+				}
+			}
 			return headers;
 		}
 
+		@Override
+		public String getHeader(String name) {
+			String lowerCaseName = name.toLowerCase(Locale.US);
+			if (headers != null) {
+				return headers.get(lowerCaseName);
+			}
+			if (remoteIp != null && ("remote-addr".equals(lowerCaseName) || "http-client-ip".equals(lowerCaseName))) {
+				return remoteIp;
+			}
+			int header = findHeader(lowerCaseName);
+			return header < 0 ? null : new String(buf, headerOffsets[header + 2], headerOffsets[header + 3]
+					- headerOffsets[header + 2], ISO_8859_1);
+		}
+
 		@Override
 		public final String getUri() {
 			return uri;
@@ -1108,10 +2512,90 @@ public abstract class NanoHTTPD {
 
 		@Override
 		public CookieHandler getCookies() {
+			if (cookies == null) {
+				cookies = new CookieHandler(getHeaders());
+			}
 			return cookies;
 		}
 	}
 
+	/**
+	 * Pushback stream over a connection that keeps track of how much of the
+	 * current request body has been consumed.
+	 */
+	private static final class RequestInputStream extends PushbackInputStream {
+		private long consumed;
+		private long bodyStart;
+
+		RequestInputStream(InputStream in) {
+			super(in, HTTPSession.BUFSIZE);
+		}
+
+		void setSource(InputStream in) {
+			this.in = in;
+			this.pos = buf.length;
+			this.consumed = 0;
+			this.bodyStart = 0;
+		}
+
+		void startBody() {
+			bodyStart = consumed;
+		}
+
+		long bodyBytesRead() {
+			return consumed - bodyStart;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				consumed++;
+			}
+			return b;
+		}
+
+		/**
+		 * Unlike PushbackInputStream, does not block on the connection after
+		 * handing out pushed back bytes, so pipelined requests are served
+		 * immediately.
+		 */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (pos < buf.length && len > 0) {
+				int available = Math.min(len, buf.length - pos);
+				System.arraycopy(buf, pos, b, off, available);
+				pos += available;
+				consumed += available;
+				return available;
+			}
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				consumed += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			consumed += skipped;
+			return skipped;
+		}
+
+		@Override
+		public void unread(int b) throws IOException {
+			super.unread(b);
+			consumed--;
+		}
+
+		@Override
+		public void unread(byte[] b, int off, int len) throws IOException {
+			super.unread(b, off, len);
+			consumed -= len;
+		}
+	}
+
 	public static class Cookie {
 		private String n, v, e;
 
@@ -0,0 +1,146 @@
+package org.testobject.piranha;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * String map in a properties file that several JVMs can update concurrently.
+ * <p>
+ * Writers hold an exclusive {@link FileLock} on a sibling
+ * <code>.lock</code> file, merge their changes into the current content and
+ * replace the file with an atomic move. Readers therefore need no lock and
+ * always see a complete file.
+ */
+final class PersistentMap {
+
+	/**
+	 * A JVM can hold a file lock only once, so threads of this JVM are
+	 * serialized before they acquire it.
+	 */
+	private static final ConcurrentMap<Path, Object> MONITORS = new ConcurrentHashMap<Path, Object>();
+
+	private final Path file;
+	private final Path lockFile;
+
+	PersistentMap(Path file) {
+		this.file = file.toAbsolutePath().normalize();
+		this.lockFile = this.file.resolveSibling(this.file.getFileName() + ".lock");
+	}
+
+	Path getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the current content, empty if the file does not exist yet.
+	 */
+	Map<String, String> load() throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			properties.load(in);
+		} catch (NoSuchFileException e) {
+			// nothing stored yet
+		}
+
+		Map<String, String> map = new HashMap<String, String>();
+		for (String key : properties.stringPropertyNames()) {
+			map.put(key, properties.getProperty(key));
+		}
+		return map;
+	}
+
+	/**
+	 * Stores the entries and removes the keys, keeping all other entries
+	 * including those written by other processes in the meantime.
+	 *
+	 * @return the content after the update
+	 */
+	Map<String, String> update(Map<String, String> entries, Collection<String> removals) throws IOException {
+		synchronized (monitor()) {
+			Files.createDirectories(file.getParent());
+			try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				FileLock lock = channel.lock();
+				try {
+					Map<String, String> map = load();
+					map.keySet().removeAll(removals);
+					map.putAll(entries);
+					write(map);
+					return map;
+				} finally {
+					lock.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the file and its lock file, once no one updates the map any
+	 * more.
+	 */
+	void delete() throws IOException {
+		Object monitor = monitor();
+		synchronized (monitor) {
+			if (Files.exists(lockFile)) {
+				try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+					FileLock lock = channel.lock();
+					try {
+						Files.deleteIfExists(file);
+					} finally {
+						lock.release();
+					}
+				}
+				Files.deleteIfExists(lockFile);
+			} else {
+				Files.deleteIfExists(file);
+			}
+			MONITORS.remove(file, monitor);
+		}
+	}
+
+	private Object monitor() {
+		Object monitor = MONITORS.get(file);
+		if (monitor == null) {
+			Object created = new Object();
+			monitor = MONITORS.putIfAbsent(file, created);
+			if (monitor == null) {
+				monitor = created;
+			}
+		}
+		return monitor;
+	}
+
+	private void write(Map<String, String> map) throws IOException {
+		Properties properties = new Properties();
+		properties.putAll(map);
+
+		Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(temp)) {
+				properties.store(out, null);
+			}
+			try {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+}
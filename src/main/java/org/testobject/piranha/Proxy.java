@@ -1,41 +1,227 @@
 package org.testobject.piranha;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.ws.rs.core.MediaType;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
 public class Proxy extends NanoHTTPD {
 
-	private final String url;
+	private static final ContentType COMMAND_CONTENT_TYPE = ContentType.create(MediaType.APPLICATION_FORM_URLENCODED);
+
+	private static final String SESSION_PATH = "/session/";
+
+	private static final String METRICS_PATH = "/metrics";
+
+	/**
+	 * Bytes at the start of a command searched for the JSON-RPC method name.
+	 */
+	private static final int METHOD_PREFIX = 1024;
+
+	private static Proxy shared;
+	private static int sharedReferences;
+
+	/**
+	 * Upstream URL of a single-session proxy, <code>null</code> if the proxy
+	 * routes by session ID.
+	 */
+	private volatile String url;
+	private volatile String sessionId;
+	/**
+	 * Upstream URLs by session ID, for a proxy shared by several sessions.
+	 */
+	private final ConcurrentMap<String, String> sessions = new ConcurrentHashMap<String, String>();
 	private final CloseableHttpClient httpClient;
+	private final CloseableHttpAsyncClient asyncHttpClient;
+	private final boolean streaming;
+	private final HeartbeatManager heartbeats = HeartbeatManager.shared();
+	private final ProxyMetrics metrics = new ProxyMetrics();
 	Logger logger = Logger.getLogger(TestObjectPiranha.class);
 	
 	public Proxy(int port, String baseUrl, String sessionId) {
+		this(port, baseUrl, sessionId, new ProxyConfig());
+	}
+
+	public Proxy(int port, String baseUrl, String sessionId, ProxyConfig config) {
+		this(port, config, sessionId, baseUrl + SESSION_PATH + sessionId);
+	}
+
+	/**
+	 * Creates a proxy that routes requests to the sessions registered with
+	 * {@link #register(String, String)}, by the session ID in the request
+	 * path (<code>.../session/{id}...</code>).
+	 */
+	public Proxy(int port, ProxyConfig config) {
+		this(port, config, null, null);
+	}
+
+	private Proxy(int port, ProxyConfig config, String sessionId, String url) {
 		super(port);
 
-		this.httpClient = HttpClients.createDefault();
-		this.url = baseUrl + "/session/" + sessionId;
+		this.httpClient = config.getUpstreamConnectionPool().getHttpClient();
+		this.asyncHttpClient = config.isAsync() ? config.getUpstreamConnectionPool().getAsyncHttpClient() : null;
+		this.url = url;
+		this.sessionId = sessionId;
+		this.streaming = config.isStreaming();
+
+		setNonBlocking(config.isNonBlocking());
+		if (config.getAsyncRunner() != null) {
+			setAsyncRunner(config.getAsyncRunner());
+		}
+	}
+
+	/**
+	 * The proxy shared by all sessions of this JVM, started on first use with
+	 * the given configuration. Every call must be paired with
+	 * {@link #releaseShared()}.
+	 */
+	public static synchronized Proxy acquireShared(ProxyConfig config) throws IOException {
+		if (shared == null) {
+			Proxy proxy = new Proxy(0, config);
+			proxy.start();
+			shared = proxy;
+		}
+		sharedReferences++;
+		return shared;
+	}
+
+	/**
+	 * Stops the shared proxy once the last session has released it.
+	 */
+	public static synchronized void releaseShared() {
+		if (shared != null && --sharedReferences == 0) {
+			shared.stop();
+			shared = null;
+		}
+	}
+
+	/**
+	 * Turns a proxy created with {@link #Proxy(int, ProxyConfig)} into a
+	 * proxy for a single session, so that it can be started while the
+	 * session is still being created.
+	 */
+	public void setSession(String baseUrl, String sessionId) {
+		this.sessionId = sessionId;
+		this.url = baseUrl + SESSION_PATH + sessionId;
+	}
+
+	/**
+	 * Routes requests for the session to its upstream URL.
+	 */
+	public void register(String sessionId, String baseUrl) {
+		sessions.put(sessionId, baseUrl + SESSION_PATH + sessionId);
+	}
+
+	public void unregister(String sessionId) {
+		sessions.remove(sessionId);
+		metrics.removeSession(sessionId);
+	}
+
+	/**
+	 * Command timings and sizes, also served on <code>GET /metrics</code>.
+	 */
+	public ProxyMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the path prefix clients of a shared proxy have to use.
+	 */
+	public static String basePath(String sessionId) {
+		return SESSION_PATH + sessionId;
+	}
+
+	/**
+	 * Resolves the upstream URL of the request and records the traffic, so
+	 * that the session does not need a separate keepalive.
+	 */
+	private String resolveUrl(IHTTPSession session) {
+		if (url != null) {
+			heartbeats.touch(sessionId);
+			return url;
+		}
+		String id = sessionIdOf(session);
+		String target = id == null ? null : sessions.get(id);
+		if (target != null) {
+			heartbeats.touch(id);
+		}
+		return target;
+	}
+
+	private String sessionIdOf(IHTTPSession session) {
+		if (url != null) {
+			return sessionId;
+		}
+		String uri = session.getUri();
+		int start = uri.indexOf(SESSION_PATH);
+		if (start < 0) {
+			return null;
+		}
+		start += SESSION_PATH.length();
+		int end = uri.indexOf('/', start);
+		return end < 0 ? uri.substring(start) : uri.substring(start, end);
+	}
+
+	private static boolean isMetricsRequest(IHTTPSession session) {
+		return session.getMethod() == Method.GET && METRICS_PATH.equals(session.getUri());
+	}
+
+	private Response metricsResponse() {
+		return new NanoHTTPD.Response(Response.Status.OK, "text/plain; version=0.0.4; charset=utf-8",
+				metrics.toPrometheus());
+	}
+
+	private static Response unknownSession(IHTTPSession session) {
+		return new NanoHTTPD.Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Unknown session: "
+				+ session.getUri());
 	}
 
 	@Override
 	public Response serve(IHTTPSession session) {
+		if (isMetricsRequest(session)) {
+			return metricsResponse();
+		}
+		String url = resolveUrl(session);
+		if (url == null) {
+			return unknownSession(session);
+		}
+		if (streaming) {
+			return serveStreaming(session, url);
+		}
+
+		long start = System.nanoTime();
 		String command = session.readBody();
+		long sent = System.nanoTime();
+		ProxyMetrics.Command stats = metrics.command(sessionIdOf(session), ProxyMetrics.methodName(command));
+		stats.read.record(sent - start);
+		stats.requestSize.record(session.getBodySize());
 
 		HttpPost p = new HttpPost(url);
-		p.setEntity(new StringEntity(command,
-				ContentType.create(MediaType.APPLICATION_FORM_URLENCODED)));
+		p.setEntity(new StringEntity(command, COMMAND_CONTENT_TYPE));
 
 		p.setHeader(HttpHeaders.ACCEPT_ENCODING, "application/json-rpc");
 		
@@ -45,9 +231,152 @@ public class Proxy extends NanoHTTPD {
 			CloseableHttpResponse response = httpClient.execute(p);
 
 			String responseAsString = entityToString(response);
+			stats.upstream.record(System.nanoTime() - sent);
+
+			return new MeteredResponse(stats, responseAsString);
+		} catch (IOException e) {
+			stats.errors.increment();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Forwards the command without blocking; the response is completed from
+	 * the HTTP client's I/O thread.
+	 */
+	@Override
+	public void serveAsync(IHTTPSession session, final ResponseCallback callback) {
+		if (asyncHttpClient == null || isMetricsRequest(session)) {
+			super.serveAsync(session, callback);
+			return;
+		}
+
+		final String url = resolveUrl(session);
+		if (url == null) {
+			callback.respond(unknownSession(session));
+			return;
+		}
+
+		long start = System.nanoTime();
+		byte[] command = readBodyBytes(session);
+		final long sent = System.nanoTime();
+		final ProxyMetrics.Command stats = metrics.command(sessionIdOf(session), ProxyMetrics.methodName(new String(
+				command, 0, Math.min(command.length, METHOD_PREFIX), StandardCharsets.ISO_8859_1)));
+		stats.read.record(sent - start);
+		stats.requestSize.record(command.length);
+
+		HttpPost p = new HttpPost(url);
+		p.setEntity(new ByteArrayEntity(command, COMMAND_CONTENT_TYPE));
+		p.setHeader(HttpHeaders.ACCEPT_ENCODING, "application/json-rpc");
+
+		logger.debug("[" + Thread.currentThread().getName() + "] sending async request " + url + " (" + command.length
+				+ " bytes)");
+
+		asyncHttpClient.execute(p, new FutureCallback<HttpResponse>() {
+			@Override
+			public void completed(HttpResponse response) {
+				stats.upstream.record(System.nanoTime() - sent);
+				callback.respond(toResponse(response, stats));
+			}
+
+			@Override
+			public void failed(Exception e) {
+				stats.errors.increment();
+				logger.warn("Forwarding command to " + url + " failed", e);
+				callback.respond(new NanoHTTPD.Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+						"SERVER INTERNAL ERROR: " + e.getMessage()));
+			}
+
+			@Override
+			public void cancelled() {
+				stats.errors.increment();
+				callback.respond(new NanoHTTPD.Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+						"SERVER INTERNAL ERROR: Request cancelled"));
+			}
+		});
+	}
+
+	/**
+	 * Wraps the upstream response, which the async client has already
+	 * buffered.
+	 */
+	private static Response toResponse(HttpResponse response, ProxyMetrics.Command stats) {
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			return new MeteredResponse(stats, "");
+		}
+		try {
+			long contentLength = entity.getContentLength();
+			Response r = new MeteredResponse(stats, entity.getContent(), contentLength);
+			r.setChunkedTransfer(contentLength < 0);
+			return r;
+		} catch (IOException e) {
+			return new NanoHTTPD.Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+					"SERVER INTERNAL ERROR: IOException: " + e.getMessage());
+		}
+	}
+
+	private static byte[] readBodyBytes(IHTTPSession session) {
+		try {
+			byte[] body = new byte[(int) session.getBodySize()];
+			IOUtils.readFully(session.getInputStream(), body);
+			return body;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Pipes the command body to TestObject and the result back without
+	 * buffering either of them. Reading the command is part of the upstream
+	 * time, which ends with the response head; streaming the response body is
+	 * part of the write time.
+	 */
+	private Response serveStreaming(IHTTPSession session, String url) {
+		long size = session.getBodySize();
+		PushbackInputStream in = new PushbackInputStream(session.getInputStream(), METHOD_PREFIX);
+		ProxyMetrics.Command stats;
+		try {
+			byte[] prefix = new byte[(int) Math.min(size, METHOD_PREFIX)];
+			int read = IOUtils.read(in, prefix);
+			in.unread(prefix, 0, read);
+			stats = metrics.command(sessionIdOf(session), ProxyMetrics.methodName(new String(prefix, 0, read,
+					StandardCharsets.ISO_8859_1)));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		stats.requestSize.record(size);
+
+		BoundedInputStream body = new BoundedInputStream(in, size);
+		// the connection stays open for the next request
+		body.setPropagateClose(false);
+
+		HttpPost p = new HttpPost(url);
+		p.setEntity(new InputStreamEntity(body, size, COMMAND_CONTENT_TYPE));
+		p.setHeader(HttpHeaders.ACCEPT_ENCODING, "application/json-rpc");
 
-			return new NanoHTTPD.Response(Response.Status.OK, "application/json-rpc", responseAsString);
+		logger.debug("[" + Thread.currentThread().getName() + "] streaming request " + url + " (" + size + " bytes)");
+
+		CloseableHttpResponse response = null;
+		long start = System.nanoTime();
+		try {
+			response = httpClient.execute(p);
+			stats.upstream.record(System.nanoTime() - start);
+
+			HttpEntity entity = response.getEntity();
+			if (entity == null) {
+				response.close();
+				return new MeteredResponse(stats, "");
+			}
+
+			long contentLength = entity.getContentLength();
+			Response r = new MeteredResponse(stats, new ResponseBodyStream(response, entity.getContent()),
+					contentLength);
+			r.setChunkedTransfer(contentLength < 0);
+			return r;
 		} catch (IOException e) {
+			stats.errors.increment();
+			closeQuietly(response);
 			throw new RuntimeException(e);
 		}
 	}
@@ -72,4 +401,61 @@ public class Proxy extends NanoHTTPD {
 		}
 	}
 
+	private static void closeQuietly(CloseableHttpResponse response) {
+		if (response != null) {
+			try {
+				response.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Command response that records the time it took to write it to the
+	 * client, or in non-blocking mode to hand it to the connection.
+	 */
+	private static class MeteredResponse extends NanoHTTPD.Response {
+		private final ProxyMetrics.Command stats;
+
+		MeteredResponse(ProxyMetrics.Command stats, String text) {
+			super(Response.Status.OK, "application/json-rpc", text);
+			this.stats = stats;
+		}
+
+		MeteredResponse(ProxyMetrics.Command stats, InputStream data, long contentLength) {
+			super(Response.Status.OK, "application/json-rpc", data, contentLength);
+			this.stats = stats;
+		}
+
+		@Override
+		protected void send(OutputStream outputStream) {
+			long start = System.nanoTime();
+			super.send(outputStream);
+			stats.write.record(System.nanoTime() - start);
+			stats.responseSize.record(getSentBytes());
+		}
+	}
+
+	/**
+	 * Upstream entity content that hands the connection back to the pool once
+	 * the response has been sent.
+	 */
+	private static class ResponseBodyStream extends FilterInputStream {
+		private final CloseableHttpResponse response;
+
+		ResponseBodyStream(CloseableHttpResponse response, InputStream content) {
+			super(content);
+			this.response = response;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				response.close();
+			}
+		}
+	}
+
 }
@@ -0,0 +1,99 @@
+package org.testobject.piranha;
+
+/**
+ * Settings for the local {@link Proxy} that is started for each session.
+ */
+public class ProxyConfig {
+
+	private boolean nonBlocking;
+	private boolean streaming;
+	private boolean async;
+	private boolean shared;
+	private NanoHTTPD.AsyncRunner asyncRunner;
+	private UpstreamConnectionPool upstreamConnectionPool;
+
+	public boolean isNonBlocking() {
+		return nonBlocking;
+	}
+
+	/**
+	 * Serve all connections of a proxy from one selector thread, see
+	 * {@link NanoHTTPD#setNonBlocking(boolean)}.
+	 */
+	public void setNonBlocking(boolean nonBlocking) {
+		this.nonBlocking = nonBlocking;
+	}
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * Pass command bodies and results through without buffering them as
+	 * strings. Saves several copies of large payloads such as pushFile
+	 * commands, screenshots or page sources. In non-blocking mode results
+	 * are written to the client in pieces of 64 KB as they arrive, and
+	 * command bodies above 64 KB are spooled to a temp file first.
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	public boolean isAsync() {
+		return async;
+	}
+
+	/**
+	 * Forward commands with a non-blocking HTTP client. While a command is
+	 * in flight no thread is occupied for it; best combined with
+	 * {@link #setNonBlocking(boolean)}, since a blocking server still keeps
+	 * the connection's thread waiting. Takes precedence over streaming.
+	 */
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	public boolean isShared() {
+		return shared;
+	}
+
+	/**
+	 * Serve all sessions of this JVM from one proxy on a single port, see
+	 * {@link Proxy#acquireShared(ProxyConfig)}. Clients then have to prefix
+	 * their requests with {@link TestObjectPiranha#getBasePath()}. The
+	 * configuration of the session that starts the shared proxy applies.
+	 */
+	public void setShared(boolean shared) {
+		this.shared = shared;
+	}
+
+	public NanoHTTPD.AsyncRunner getAsyncRunner() {
+		return asyncRunner;
+	}
+
+	/**
+	 * Threading strategy used by the proxy, e.g.
+	 * {@link NanoHTTPD#createBoundedAsyncRunner(int, int)}. The same instance
+	 * may be shared by the proxies of several sessions; it is not shut down
+	 * when a proxy stops. <code>null</code> keeps the server's default.
+	 */
+	public void setAsyncRunner(NanoHTTPD.AsyncRunner asyncRunner) {
+		this.asyncRunner = asyncRunner;
+	}
+
+	/**
+	 * @return the configured pool or the JVM-wide
+	 *         {@link UpstreamConnectionPool#shared()} one.
+	 */
+	public UpstreamConnectionPool getUpstreamConnectionPool() {
+		return upstreamConnectionPool != null ? upstreamConnectionPool : UpstreamConnectionPool.shared();
+	}
+
+	/**
+	 * Connection pool used to forward commands, by default the shared one.
+	 */
+	public void setUpstreamConnectionPool(UpstreamConnectionPool upstreamConnectionPool) {
+		this.upstreamConnectionPool = upstreamConnectionPool;
+	}
+
+}
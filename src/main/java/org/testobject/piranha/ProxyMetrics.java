@@ -0,0 +1,155 @@
+package org.testobject.piranha;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings and sizes of the commands a {@link Proxy} forwards, by session and
+ * JSON-RPC method, served in Prometheus text format on <code>/metrics</code>.
+ * Recording costs a few atomic additions per command; all aggregation
+ * happens when the metrics are scraped.
+ */
+public class ProxyMetrics {
+
+	/**
+	 * Distinct method names kept per session, further ones are counted as
+	 * {@link #OTHER}.
+	 */
+	static final int MAX_METHODS = 64;
+	static final String UNKNOWN = "unknown";
+	static final String OTHER = "other";
+
+	private static final String METHOD_KEY = "\"method\"";
+
+	private final ConcurrentMap<String, ConcurrentMap<String, Command>> sessions = new ConcurrentHashMap<String, ConcurrentMap<String, Command>>();
+
+	Command command(String sessionId, String method) {
+		ConcurrentMap<String, Command> methods = sessions.get(sessionId);
+		if (methods == null) {
+			ConcurrentMap<String, Command> created = new ConcurrentHashMap<String, Command>();
+			methods = sessions.putIfAbsent(sessionId, created);
+			if (methods == null) {
+				methods = created;
+			}
+		}
+
+		Command command = methods.get(method);
+		if (command == null) {
+			if (methods.size() >= MAX_METHODS) {
+				method = OTHER;
+			}
+			Command created = new Command();
+			command = methods.putIfAbsent(method, created);
+			if (command == null) {
+				command = created;
+			}
+		}
+		return command;
+	}
+
+	/**
+	 * Drops the series of a session that has ended.
+	 */
+	void removeSession(String sessionId) {
+		sessions.remove(sessionId);
+	}
+
+	/**
+	 * @return the number of commands forwarded for the session, over all
+	 *         methods.
+	 */
+	public long getCommandCount(String sessionId) {
+		Map<String, Command> methods = sessions.get(sessionId);
+		long count = 0;
+		if (methods != null) {
+			for (Command command : methods.values()) {
+				count += command.upstream.getCount();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return all series in Prometheus text exposition format.
+	 */
+	public String toPrometheus() {
+		StringBuilder out = new StringBuilder(4096);
+		histogram(out, "piranha_proxy_read_seconds", "Time to read the command from the client.", 0);
+		histogram(out, "piranha_proxy_upstream_seconds",
+				"Time from sending the command upstream until the response arrived.", 1);
+		histogram(out, "piranha_proxy_write_seconds", "Time to write the response to the client.", 2);
+		histogram(out, "piranha_proxy_request_bytes", "Size of the command.", 3);
+		histogram(out, "piranha_proxy_response_bytes", "Size of the response.", 4);
+
+		out.append("# HELP piranha_proxy_upstream_errors_total Commands that could not be forwarded.\n");
+		out.append("# TYPE piranha_proxy_upstream_errors_total counter\n");
+		for (Map.Entry<String, ConcurrentMap<String, Command>> session : sessions.entrySet()) {
+			for (Map.Entry<String, Command> method : session.getValue().entrySet()) {
+				out.append("piranha_proxy_upstream_errors_total{").append(labels(session.getKey(), method.getKey()))
+						.append("} ").append(method.getValue().errors.sum()).append('\n');
+			}
+		}
+		return out.toString();
+	}
+
+	private void histogram(StringBuilder out, String name, String help, int index) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" histogram\n");
+		for (Map.Entry<String, ConcurrentMap<String, Command>> session : sessions.entrySet()) {
+			for (Map.Entry<String, Command> method : session.getValue().entrySet()) {
+				method.getValue().histograms[index].write(out, name, labels(session.getKey(), method.getKey()));
+			}
+		}
+	}
+
+	private static String labels(String sessionId, String method) {
+		return "session=\"" + escape(sessionId) + "\",method=\"" + escape(method) + "\"";
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Finds the JSON-RPC method name near the start of a command without
+	 * parsing it.
+	 *
+	 * @return the method, or {@link #UNKNOWN}
+	 */
+	static String methodName(String command) {
+		int key = command.indexOf(METHOD_KEY);
+		if (key < 0) {
+			return UNKNOWN;
+		}
+		int i = key + METHOD_KEY.length();
+		while (i < command.length() && Character.isWhitespace(command.charAt(i))) {
+			i++;
+		}
+		if (i >= command.length() || command.charAt(i) != ':') {
+			return UNKNOWN;
+		}
+		int start = command.indexOf('"', i + 1);
+		int end = start < 0 ? -1 : command.indexOf('"', start + 1);
+		if (end < 0 || command.substring(i + 1, start).trim().length() > 0) {
+			return UNKNOWN;
+		}
+		return command.substring(start + 1, end);
+	}
+
+	/**
+	 * Histograms of one method of one session.
+	 */
+	static final class Command {
+		final Histogram read = Histogram.nanos();
+		final Histogram upstream = Histogram.nanos();
+		final Histogram write = Histogram.nanos();
+		final Histogram requestSize = Histogram.bytes();
+		final Histogram responseSize = Histogram.bytes();
+		final LongAdder errors = new LongAdder();
+
+		private final Histogram[] histograms = { read, upstream, write, requestSize, responseSize };
+	}
+
+}
@@ -0,0 +1,431 @@
+package org.testobject.piranha;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.Gson;
+
+import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps sessions open in advance, so that a test does not have to wait for
+ * the cloud to allocate and boot a device.
+ * <p>
+ * Sessions are pooled by their {@link DesiredCapabilities}. A test
+ * {@link #borrow(DesiredCapabilities) borrows} a session and afterwards
+ * either {@link #release(TestObjectPiranha) releases} it for the next test or
+ * {@link #discard(TestObjectPiranha) discards} it. Capabilities that were
+ * {@link #prewarm(DesiredCapabilities, int) prewarmed} are refilled in the
+ * background while they are in demand, idle sessions are closed after
+ * {@link Settings#setIdleTimeoutMillis(long)}.
+ */
+public class SessionPool implements Closeable {
+
+	private static final Gson GSON = new Gson();
+
+	private final Logger logger = Logger.getLogger(SessionPool.class);
+
+	private final String baseUrl;
+	private final Settings settings;
+	private final ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+	private final ConcurrentMap<TestObjectPiranha, Pool> borrowed = new ConcurrentHashMap<TestObjectPiranha, Pool>();
+	private final ExecutorService opener;
+	private final ExecutorService closer;
+	private final ScheduledExecutorService maintenance;
+	private volatile boolean closed;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	public SessionPool(String baseUrl) {
+		this(baseUrl, new Settings());
+	}
+
+	public SessionPool(String baseUrl, Settings settings) {
+		this.baseUrl = baseUrl;
+		this.settings = settings;
+		this.opener = Executors.newFixedThreadPool(settings.openerThreads, new ThreadFactoryBuilder()
+				.setNameFormat("Piranha session pool-%d").setDaemon(true).build());
+		// closes wait for the cloud to delete the session, which must not delay opening the next ones
+		this.closer = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+				.setNameFormat("Piranha session pool close-%d").setDaemon(true).build());
+		this.maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("Piranha session pool maintenance").setDaemon(true).build());
+
+		long period = Math.max(1000, Math.min(settings.idleTimeoutMillis / 4, 30 * 1000));
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				maintain();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Identifies sessions with equal capabilities, independent of the order
+	 * they were set in.
+	 */
+	static String fingerprint(DesiredCapabilities capabilities) {
+		return GSON.toJson(new TreeMap<String, Object>(capabilities.getCapabilities()));
+	}
+
+	/**
+	 * Keeps <code>count</code> sessions with these capabilities ready and
+	 * starts opening the missing ones in the background.
+	 */
+	public void prewarm(DesiredCapabilities capabilities, int count) {
+		Pool pool = pool(capabilities);
+		pool.target = count;
+		pool.lastDemand = System.currentTimeMillis();
+		refill(pool);
+	}
+
+	/**
+	 * Takes an idle session with these capabilities. If there is none, waits
+	 * up to {@link Settings#setMaxWaitMillis(long)} for one that is being
+	 * opened in the background, and otherwise opens a new session.
+	 */
+	public TestObjectPiranha borrow(DesiredCapabilities capabilities) throws InterruptedException {
+		ensureOpen();
+		long start = System.nanoTime();
+		Pool pool = pool(capabilities);
+		pool.lastDemand = System.currentTimeMillis();
+
+		TestObjectPiranha session = pool.takeIdle(settings.maxWaitMillis);
+
+		if (session != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			session = pool.open();
+		}
+		refill(pool);
+
+		recordWait(System.nanoTime() - start);
+		borrowed.put(session, pool);
+		return session;
+	}
+
+	/**
+	 * Returns a session for the next test with the same capabilities. Sessions
+	 * that are closed or exceed the pool size are closed.
+	 */
+	public void release(TestObjectPiranha session) {
+		Pool pool = borrowed.remove(session);
+		if (pool == null) {
+			throw new IllegalArgumentException("Session was not borrowed from this pool: " + session.getSessionId());
+		}
+		if (closed || !session.isOpen() || !pool.offer(session)) {
+			closeInBackground(session);
+		}
+	}
+
+	/**
+	 * Closes a borrowed session, e.g. after a failed test left the device in
+	 * an unknown state.
+	 */
+	public void discard(TestObjectPiranha session) {
+		Pool pool = borrowed.remove(session);
+		closeInBackground(session);
+		if (pool != null) {
+			refill(pool);
+		}
+	}
+
+	/**
+	 * Borrows that found a session in the pool.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Borrows that had to open a session themselves.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Average time {@link #borrow(DesiredCapabilities)} took, in
+	 * milliseconds.
+	 */
+	public double getAverageWaitMillis() {
+		long count = hits.get() + misses.get();
+		return count == 0 ? 0 : waitNanos.get() / (double) count / 1000000;
+	}
+
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1000000d;
+	}
+
+	public int getIdleCount() {
+		int count = 0;
+		for (Pool pool : pools.values()) {
+			count += pool.idle.size();
+		}
+		return count;
+	}
+
+	public int getBorrowedCount() {
+		return borrowed.size();
+	}
+
+	@Override
+	public String toString() {
+		return "idle: " + getIdleCount() + ", borrowed: " + getBorrowedCount() + ", hits: " + getHits()
+				+ ", misses: " + getMisses() + ", avg wait: " + String.format("%.3f", getAverageWaitMillis())
+				+ "ms, max wait: " + String.format("%.3f", getMaxWaitMillis()) + "ms";
+	}
+
+	/**
+	 * Closes all idle sessions. Borrowed sessions are closed when they are
+	 * released.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		maintenance.shutdownNow();
+		for (Pool pool : pools.values()) {
+			Idle idle;
+			while ((idle = pool.idle.pollFirst()) != null) {
+				closeInBackground(idle.session);
+			}
+		}
+		opener.shutdown();
+		closer.shutdown();
+	}
+
+	private Pool pool(DesiredCapabilities capabilities) {
+		String key = fingerprint(capabilities);
+		Pool pool = pools.get(key);
+		if (pool == null) {
+			Pool created = new Pool(capabilities);
+			pool = pools.putIfAbsent(key, created);
+			if (pool == null) {
+				pool = created;
+			}
+		}
+		return pool;
+	}
+
+	private void refill(final Pool pool) {
+		if (closed) {
+			return;
+		}
+		synchronized (pool) {
+			if (System.currentTimeMillis() - pool.lastDemand > settings.idleTimeoutMillis) {
+				return;
+			}
+			while (pool.idle.size() + pool.opening < pool.target) {
+				pool.opening++;
+				opener.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							TestObjectPiranha session = pool.open();
+							if (closed || !pool.offer(session)) {
+								session.close();
+							}
+						} catch (Throwable e) {
+							logger.warn(String.format("Failed to open pooled session: %s", e));
+						} finally {
+							synchronized (pool) {
+								pool.opening--;
+								// a borrower waiting for this session opens one itself if it failed
+								pool.notifyAll();
+							}
+						}
+					}
+				});
+			}
+		}
+	}
+
+	private void maintain() {
+		long now = System.currentTimeMillis();
+		for (Pool pool : pools.values()) {
+			for (Idle idle : pool.idle) {
+				if ((!idle.session.isOpen() || now - idle.since > settings.idleTimeoutMillis)
+						&& pool.idle.remove(idle)) {
+					closeInBackground(idle.session);
+				}
+			}
+			refill(pool);
+		}
+	}
+
+	private void closeInBackground(final TestObjectPiranha session) {
+		if (!session.isOpen()) {
+			return;
+		}
+		Runnable close = new Runnable() {
+			@Override
+			public void run() {
+				session.close();
+			}
+		};
+		if (closer.isShutdown()) {
+			close.run();
+		} else {
+			closer.execute(close);
+		}
+	}
+
+	private void recordWait(long nanos) {
+		waitNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, nanos)) {
+		}
+	}
+
+	private void ensureOpen() {
+		if (closed) {
+			throw new IllegalStateException("Session pool is closed");
+		}
+	}
+
+	/**
+	 * Idle sessions of one capability fingerprint.
+	 */
+	private class Pool {
+		private final DesiredCapabilities capabilities;
+		private final LinkedBlockingDeque<Idle> idle = new LinkedBlockingDeque<Idle>();
+		private volatile int target;
+		private volatile long lastDemand;
+		// guarded by this
+		private int opening;
+
+		Pool(DesiredCapabilities capabilities) {
+			// copy, so that later changes by the caller do not affect the pool
+			this.capabilities = new DesiredCapabilities();
+			for (Map.Entry<String, Object> capability : capabilities.getCapabilities().entrySet()) {
+				this.capabilities.setCapability(capability.getKey(), capability.getValue());
+			}
+		}
+
+		TestObjectPiranha open() {
+			TestObjectPiranha session = new TestObjectPiranha(baseUrl, capabilities);
+			if (settings.proxyConfig != null) {
+				session.setProxyConfig(settings.proxyConfig);
+			}
+			session.open();
+			return session;
+		}
+
+		/**
+		 * Most recently used first, so that surplus sessions become idle long
+		 * enough to be evicted.
+		 */
+		TestObjectPiranha takeIdle() {
+			Idle next;
+			while ((next = idle.pollFirst()) != null) {
+				if (next.session.isOpen()) {
+					return next.session;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Waits for a session while others are being opened in the
+		 * background, and gives up early once none are left.
+		 */
+		synchronized TestObjectPiranha takeIdle(long timeoutMillis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (true) {
+				TestObjectPiranha session = takeIdle();
+				long remaining = deadline - System.currentTimeMillis();
+				if (session != null || opening == 0 || remaining <= 0) {
+					return session;
+				}
+				wait(remaining);
+			}
+		}
+
+		/**
+		 * Checks the size and adds atomically, so that concurrent releases
+		 * cannot exceed it.
+		 */
+		synchronized boolean offer(TestObjectPiranha session) {
+			if (idle.size() >= Math.max(target, settings.maxIdlePerCapabilities)) {
+				return false;
+			}
+			idle.addFirst(new Idle(session));
+			notifyAll();
+			return true;
+		}
+	}
+
+	private static class Idle {
+		private final TestObjectPiranha session;
+		private final long since = System.currentTimeMillis();
+
+		Idle(TestObjectPiranha session) {
+			this.session = session;
+		}
+	}
+
+	/**
+	 * Sizing and session life cycle of a pool.
+	 */
+	public static class Settings {
+		private int maxIdlePerCapabilities = 1;
+		private long idleTimeoutMillis = 5 * 60 * 1000;
+		private long maxWaitMillis = 5 * 60 * 1000;
+		private int openerThreads = 4;
+		private ProxyConfig proxyConfig;
+
+		/**
+		 * Released sessions are kept up to this number, or up to the
+		 * prewarmed count if that is higher.
+		 */
+		public void setMaxIdlePerCapabilities(int maxIdlePerCapabilities) {
+			this.maxIdlePerCapabilities = maxIdlePerCapabilities;
+		}
+
+		/**
+		 * Sessions idle for longer than this are closed. Capabilities not
+		 * borrowed or prewarmed for this long are no longer refilled.
+		 */
+		public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+			this.idleTimeoutMillis = idleTimeoutMillis;
+		}
+
+		/**
+		 * How long a borrow waits for a session that is already being opened
+		 * before it opens one itself.
+		 */
+		public void setMaxWaitMillis(long maxWaitMillis) {
+			this.maxWaitMillis = maxWaitMillis;
+		}
+
+		/**
+		 * Number of sessions opened in parallel in the background.
+		 */
+		public void setOpenerThreads(int openerThreads) {
+			this.openerThreads = openerThreads;
+		}
+
+		/**
+		 * Proxy settings for the pooled sessions.
+		 */
+		public void setProxyConfig(ProxyConfig proxyConfig) {
+			this.proxyConfig = proxyConfig;
+		}
+	}
+
+}
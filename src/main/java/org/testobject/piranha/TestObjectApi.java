@@ -2,60 +2,122 @@ package org.testobject.piranha;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
-import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.FileUtils;
-import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
-import org.glassfish.jersey.client.ClientConfig;
-import org.glassfish.jersey.client.authentication.HttpAuthenticationFeature;
+import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
 import org.testobject.piranha.TestObjectDevice.DeviceContainer;
 
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.*;
 import javax.ws.rs.core.Form;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.reflect.Type;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
 public class TestObjectApi {
 
+	private static final Gson GSON = new Gson();
+
+	/**
+	 * Hashes by canonical path and uploads by content, shared by all
+	 * instances so that concurrent callers hash and upload a file only once.
+	 */
+	private static final InFlight<String> HASHING = new InFlight<String>();
+	private static final InFlight<Integer> UPLOADING = new InFlight<Integer>();
+
 	private final String baseUrl;
+	private FingerprintCache fingerprintCache = FingerprintCache.shared();
+	private AppIdCache appIdCache = AppIdCache.shared();
+	private ChunkedUpload chunkedUpload;
+	private int uploadParallelism = 4;
 
 	public TestObjectApi(String baseUrl) {
 		this.baseUrl = baseUrl;
 	}
 
-	
-	public List<TestObjectDevice> listDevices(String apiKey) {
-		HttpAuthenticationFeature authFeature = HttpAuthenticationFeature.basicBuilder()
-				.credentials("testobject-api", apiKey).build();
+	/**
+	 * Where hashes of uploaded apps are remembered, by default
+	 * {@link FingerprintCache#shared()}.
+	 */
+	public void setFingerprintCache(FingerprintCache fingerprintCache) {
+		this.fingerprintCache = fingerprintCache;
+	}
 
-		Client client = ClientBuilder.newClient().register(authFeature);
-		String descriptors = client.target(baseUrl + "rest/descriptors/descriptors-api")
-				.request(MediaType.APPLICATION_JSON).get(String.class);
+	/**
+	 * Where app IDs of uploaded apps are remembered, by default
+	 * {@link AppIdCache#shared()}.
+	 */
+	public void setAppIdCache(AppIdCache appIdCache) {
+		this.appIdCache = appIdCache;
+	}
 
-		List<DeviceContainer> deviceList = new Gson().fromJson(descriptors, new TypeToken<List<DeviceContainer>>() {}.getType());
+	/**
+	 * Uploads apps larger than a chunk with the {@link ChunkedUpload}
+	 * protocol, or in a single request if <code>null</code> (the default).
+	 */
+	public void setChunkedUpload(ChunkedUpload chunkedUpload) {
+		this.chunkedUpload = chunkedUpload;
+	}
 
-		String availableDescriptors = client.target(baseUrl + "rest/descriptors/availableDescriptors-api")
-				.request(MediaType.APPLICATION_JSON).get(String.class);
+	/**
+	 * Maximum number of apps {@link #uploadApps(String, Collection)} uploads
+	 * at the same time.
+	 */
+	public void setUploadParallelism(int uploadParallelism) {
+		this.uploadParallelism = uploadParallelism;
+	}
 
-		List<String> available = new Gson().fromJson(availableDescriptors, new TypeToken<List<String>>() {}.getType());
+	
+	public List<TestObjectDevice> listDevices(String apiKey) {
+		Client client = ClientRegistry.shared().apiClient(baseUrl, apiKey);
+		ControlPlaneCall call = ControlPlaneCall.start(ControlPlaneCall.Type.LIST_DEVICES, baseUrl
+				+ "rest/descriptors");
+		List<DeviceContainer> deviceList;
+		List<String> available;
+		try {
+			CompletableFuture<List<DeviceContainer>> descriptors = DeviceJson.getAsync(
+					client.target(baseUrl + "rest/descriptors/descriptors-api"), DeviceJson.DESCRIPTORS, call);
+			CompletableFuture<List<String>> availableDescriptors = DeviceJson.getAsync(
+					client.target(baseUrl + "rest/descriptors/availableDescriptors-api"), DeviceJson.IDS, call);
 
-		List<TestObjectDevice> devices = new LinkedList<>();
-		for (DeviceContainer deviceContainer : deviceList) {
-			devices.add(new TestObjectDevice(deviceContainer, available.contains(deviceContainer.id)));
+			deviceList = DeviceJson.join(descriptors);
+			available = DeviceJson.join(availableDescriptors);
+			call.status(Response.Status.OK.getStatusCode());
+			call.end();
+		} catch (RuntimeException e) {
+			call.fail(e);
+			throw e;
 		}
 
-		return devices;		
+		return new ArrayList<>(new DeviceIndex(deviceList, available).getDevices());
+	}
+
+	/**
+	 * Cached alternative to {@link #listDevices(String)} for callers that
+	 * poll device availability; close it when done.
+	 */
+	public DeviceCatalog deviceCatalog(String apiKey) {
+		return new DeviceCatalog(baseUrl, apiKey);
 	}
 	
 	public String regenerateApiKey(String user, String password, String project) {
-		ClientConfig clientConfig = new ClientConfig();
-		clientConfig.connectorProvider(new ApacheConnectorProvider());
-		Client client = ClientBuilder.newClient(clientConfig);
+		Client client = ClientRegistry.shared().loginClient(baseUrl, user, password);
 
 		WebTarget target = client.target(baseUrl + "rest");
 
@@ -63,21 +125,33 @@ public class TestObjectApi {
 		form.param("user", user);
 		form.param("password", password);
 
-		target.path("users").path("login").request(MediaType.APPLICATION_JSON_TYPE)
-				.post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE), String.class);
+		WebTarget apiKeyTarget = target.path("users").path("testobject").path("projects").path(project)
+				.path("apiKey/appium");
+		ControlPlaneCall call = ControlPlaneCall.start(ControlPlaneCall.Type.REGENERATE_KEY, apiKeyTarget.getUri()
+				.toString());
+		String apiKeyResponse;
+		try {
+			String loginResponse = target.path("users").path("login").request(MediaType.APPLICATION_JSON_TYPE)
+					.post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE), String.class);
+			call.received(loginResponse.getBytes(StandardCharsets.UTF_8).length);
 
-		String apiKeyResponse = target.path("users").path("testobject").path("projects").path(project)
-				.path("apiKey/appium").request(MediaType.APPLICATION_JSON_TYPE)
-				.post(Entity.entity("", MediaType.APPLICATION_JSON_TYPE), String.class);
+			apiKeyResponse = apiKeyTarget.request(MediaType.APPLICATION_JSON_TYPE)
+					.post(Entity.entity("", MediaType.APPLICATION_JSON_TYPE), String.class);
+			call.received(apiKeyResponse.getBytes(StandardCharsets.UTF_8).length);
+			call.status(Response.Status.OK.getStatusCode());
+			call.end();
+		} catch (RuntimeException e) {
+			call.fail(e);
+			throw e;
+		}
 
 		return jsonToMap(apiKeyResponse).get("id");
 	}
 	
 	private static Map<String, String> jsonToMap(String json) {
-		Gson gson = new Gson();
 		Type stringStringMap = new TypeToken<Map<String, String>>() {
 		}.getType();
-		return gson.fromJson(json, stringStringMap);
+		return GSON.fromJson(json, stringStringMap);
 	}
 	
 	public int uploadApp(String apiKey, File appFile) {
@@ -87,58 +161,156 @@ public class TestObjectApi {
 	public int uploadFrameworkApp(String apiKey, File appFile) {
 		return uploadApp(apiKey, appFile, true);
 	}	
+
+	/**
+	 * Uploads several apps, at most {@link #setUploadParallelism(int)} at a
+	 * time. Files with the same content are uploaded once.
+	 *
+	 * @return the app IDs by file, in the order of the collection
+	 */
+	public Map<File, Integer> uploadApps(final String apiKey, Collection<File> appFiles) {
+		ExecutorService executor = Executors.newFixedThreadPool(uploadParallelism, new ThreadFactoryBuilder()
+				.setNameFormat("Piranha upload-apps-%d").setDaemon(true).build());
+		try {
+			Map<File, CompletableFuture<Integer>> uploads = new LinkedHashMap<>();
+			for (final File appFile : appFiles) {
+				uploads.put(appFile, CompletableFuture.supplyAsync(new Supplier<Integer>() {
+					@Override
+					public Integer get() {
+						return uploadApp(apiKey, appFile);
+					}
+				}, executor));
+			}
+
+			Map<File, Integer> appIds = new LinkedHashMap<>();
+			for (Map.Entry<File, CompletableFuture<Integer>> upload : uploads.entrySet()) {
+				appIds.put(upload.getKey(), InFlight.join(upload.getValue()));
+			}
+			return appIds;
+		} finally {
+			executor.shutdown();
+		}
+	}
 	
-	private int uploadApp(String apiKey, File appFile, boolean isFramework) {
-		WebTarget storageTarget = createAuthenticatingClient(apiKey);
+	private int uploadApp(final String apiKey, final File appFile, final boolean isFramework) {
+		final String md5 = md5(appFile);
+		return UPLOADING.run(baseUrl + '\n' + apiKey + '\n' + isFramework + '\n' + md5, new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return uploadApp(apiKey, appFile, isFramework, md5);
+			}
+		});
+	}
+
+	private int uploadApp(String apiKey, File appFile, boolean isFramework, final String md5) {
+		final WebTarget storageTarget = createAuthenticatingClient(apiKey);
+
+		Integer cachedAppId = appIdCache.get(baseUrl, apiKey, md5);
+		if (cachedAppId != null) {
+			appIdCache.validateLater(baseUrl, apiKey, md5, new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return getExistingApp(storageTarget, md5);
+				}
+			});
+			return cachedAppId;
+		}
 
-		String md5 = md5(appFile);
 		Integer existingAppId = getExistingApp(storageTarget, md5);
+		int appId;
 		if(existingAppId != null){
-			return existingAppId;
+			appId = existingAppId;
 		} else {
-			return uploadFile(appFile, isFramework, storageTarget, md5);
+			appId = uploadFile(apiKey, appFile, isFramework, storageTarget, md5, chunkedUpload);
 		}
+		appIdCache.put(baseUrl, apiKey, md5, appId);
+		return appId;
 	}
 
-	private static int uploadFile(File appFile, boolean isFramework, WebTarget storageTarget, String md5) {
-		Invocation.Builder invocationBuilder = storageTarget.path("upload").request(MediaType.TEXT_PLAIN);
-
+	private static int uploadFile(String apiKey, File appFile, boolean isFramework, WebTarget storageTarget, String md5,
+			ChunkedUpload chunkedUpload) {
+		ControlPlaneCall call = ControlPlaneCall.start(ControlPlaneCall.Type.UPLOAD_FILE, storageTarget.getUri()
+				.toString());
 		try {
-			if (isFramework) {
-				invocationBuilder.header("App-Type", "framework");
+			int appId = uploadFile(apiKey, appFile, isFramework, storageTarget, md5, chunkedUpload, call);
+			call.end();
+			return appId;
+		} catch (RuntimeException e) {
+			call.fail(e);
+			throw e;
+		}
+	}
+
+	private static int uploadFile(String apiKey, File appFile, boolean isFramework, WebTarget storageTarget, String md5,
+			ChunkedUpload chunkedUpload, ControlPlaneCall call) {
+		if (chunkedUpload != null && appFile.length() > chunkedUpload.getSettings().getChunkSize()) {
+			try {
+				return chunkedUpload.upload(apiKey, appFile, isFramework, storageTarget.getUri().toString(), md5, call);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
 			}
-			invocationBuilder.header("App-Identifier", md5);
+		}
+
+		HttpPost post = new HttpPost(storageTarget.path("upload").getUri());
+		post.setHeader(HttpHeaders.ACCEPT, MediaType.TEXT_PLAIN);
+		post.setHeader(HttpHeaders.AUTHORIZATION, ClientRegistry.basicAuthorization(apiKey));
+		if (isFramework) {
+			post.setHeader("App-Type", "framework");
+		}
+		post.setHeader("App-Identifier", md5);
+		post.setEntity(new FileChannelEntity(appFile.toPath(), 0, appFile.length(), ContentType.APPLICATION_OCTET_STREAM));
 
-			String appId = invocationBuilder
-					.post(Entity.entity(FileUtils.openInputStream(appFile), MediaType.APPLICATION_OCTET_STREAM),
-							String.class);
-			return Integer.valueOf(appId);
-		} catch (Exception e) {
+		try (CloseableHttpResponse response = ClientRegistry.shared().httpClient().execute(post)) {
+			call.sent(appFile.length());
+			String appId = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+			int status = response.getStatusLine().getStatusCode();
+			call.received(appId.getBytes(StandardCharsets.UTF_8).length);
+			call.status(status);
+			if (status < 200 || status >= 300) {
+				throw new WebApplicationException("Upload failed: " + appId, status);
+			}
+			return Integer.valueOf(appId.trim());
+		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
 	private Integer getExistingApp(WebTarget storageTarget, String md5) {
-		System.out.println(storageTarget.path("app").queryParam("appIdentifier", md5).getUri());
-		String response = storageTarget.path("app").queryParam("appIdentifier", md5).request().get(String.class);
-		List<TestObjectApp> testObjectApps = new Gson().fromJson(response, new TypeToken<List<TestObjectApp>>() {}.getType());
+		WebTarget target = storageTarget.path("app").queryParam("appIdentifier", md5);
+		ControlPlaneCall call = ControlPlaneCall.start(ControlPlaneCall.Type.GET_EXISTING_APP, target.getUri()
+				.toString());
+		String response;
+		try {
+			response = target.request().get(String.class);
+			call.received(response.getBytes(StandardCharsets.UTF_8).length);
+			call.status(Response.Status.OK.getStatusCode());
+			call.end();
+		} catch (RuntimeException e) {
+			call.fail(e);
+			throw e;
+		}
+		List<TestObjectApp> testObjectApps = GSON.fromJson(response, new TypeToken<List<TestObjectApp>>() {}.getType());
 
 		return testObjectApps != null && testObjectApps.isEmpty() == false ? testObjectApps.get(0).getId() : null;
 	}
 
-	private String md5(File appFile) {
-		try (FileInputStream fis = new FileInputStream(appFile)){
-			return DigestUtils.md5Hex(fis);
+	private String md5(final File appFile) {
+		String path;
+		try {
+			path = appFile.getCanonicalPath();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		return HASHING.run(path, new Callable<String>() {
+			@Override
+			public String call() {
+				return fingerprintCache.md5(appFile);
+			}
+		});
 	}
 
 	private WebTarget createAuthenticatingClient(String apiKey){
-		HttpAuthenticationFeature authFeature = HttpAuthenticationFeature.basicBuilder()
-				.credentials("testobject-api", apiKey).build();
-
-		Client client = ClientBuilder.newClient().register(authFeature);
+		Client client = ClientRegistry.shared().apiClient(baseUrl, apiKey);
 		return client.target(baseUrl + "storage");
 	}
 	
@@ -6,49 +6,58 @@ import com.google.gson.reflect.TypeToken;
 import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 
 import org.apache.commons.codec.binary.StringUtils;
 import org.apache.log4j.Logger;
-import org.glassfish.jersey.client.ClientProperties;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
-import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 public class TestObjectPiranha {
 
 	//	public static String TESTOBJECT_BASE_URL = "http://localhost:7070/";
     Logger logger = Logger.getLogger(TestObjectPiranha.class);
+	private static final ExecutorService OPEN_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+			.setNameFormat("Piranha open-%d").setDaemon(true).build());
 	public static String TESTOBJECT_APP_BASE_URL = "https://app.testobject.com:443/api/";
 	public static String TESTOBJECT_LMI_BASE_URL = "https://lmi.testobject.com:443/api/";
 	public static String TESTOBJECT_STAGE_APP_BASE_URL = "https://staging.testobject.org:443/api/";
 	//	public static String TESTOBJECT_BASE_URL = "http://branches.testobject.org/api/";
 
 	private final String baseUrl;
-	private final Client client = ClientBuilder.newClient();
+	private final Client client;
 	private final WebTarget webTarget;
     private final boolean isVersion2;
 
-	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1,
-			new ThreadFactoryBuilder().setNameFormat("Piranha keep-alive").build());
-
 	private String sessionId;
+	private HeartbeatManager.Heartbeat heartbeat;
 	private Proxy proxy;
 	private int port;
+	private String basePath = "";
 	private String sessionInitResponse;
 	private String liveViewURL;
 	private String testReportURL;
     private DesiredCapabilities desiredCapabilities;
+    private ProxyConfig proxyConfig = new ProxyConfig();
 
 //    /**
 //     * Constructor.
@@ -65,11 +74,10 @@ public class TestObjectPiranha {
      */
     public TestObjectPiranha(String baseUrl, DesiredCapabilities desiredCapabilities) {
         this.baseUrl = baseUrl;
+        this.client = ClientRegistry.shared().client(baseUrl);
         this.isVersion2 = isVersion2(desiredCapabilities); 
         this.webTarget = getWebTarget(baseUrl , desiredCapabilities);
         this.desiredCapabilities = desiredCapabilities;
-        client.property(ClientProperties.CONNECT_TIMEOUT, 10 * 60 * 1000); // 10 minute
-        client.property(ClientProperties.READ_TIMEOUT, 10 * 60 * 1000); // 10 minutes
     }
 
     /**
@@ -108,9 +116,33 @@ public class TestObjectPiranha {
 
 		String capsAsJson = new GsonBuilder().create().toJson(fullCapabilities);
 
+		// the proxy and its upstream connection do not depend on the session,
+		// so they are prepared while the cloud allocates the device
+		final String upstreamUrl = webTarget.getUri().toString();
+		CompletableFuture<Void> proxyStarted = null;
+		if (!isVersion2) {
+			proxyStarted = CompletableFuture.runAsync(new Runnable() {
+				@Override
+				public void run() {
+					startProxyServer();
+				}
+			}, OPEN_EXECUTOR);
+			OPEN_EXECUTOR.execute(new Runnable() {
+				@Override
+				public void run() {
+					proxyConfig.getUpstreamConnectionPool().warmUp(upstreamUrl);
+				}
+			});
+		}
+
+		ControlPlaneCall call = ControlPlaneCall.start(ControlPlaneCall.Type.OPEN, upstreamUrl + "/session");
+		call.sent(capsAsJson.getBytes(StandardCharsets.UTF_8).length);
 		try {
 			String response = webTarget.path("session").request(MediaType.TEXT_PLAIN)
 					.post(Entity.entity(capsAsJson, MediaType.APPLICATION_JSON), String.class);
+			call.received(response.getBytes(StandardCharsets.UTF_8).length);
+			call.status(Response.Status.OK.getStatusCode());
+			call.end();
 
 			logger.info(String.format("response: %s" , response));
 			Map<String, Object> map = jsonToMap(response);
@@ -129,46 +161,128 @@ public class TestObjectPiranha {
             setSessionInitResponse(response);
 
 		} catch (InternalServerErrorException e) {
+			call.fail(e);
+			abortProxyServer(proxyStarted);
 			rethrow(e);
+		} catch (RuntimeException e) {
+			call.fail(e);
+			abortProxyServer(proxyStarted);
+			closeResponse(e);
+			throw e;
 		}
 		//for v2 proxy is not started
 		if(!isVersion2){
-	        startProxyServer(sessionId);		    
+			try {
+				awaitProxyServer(proxyStarted);
+				attachProxyServer(sessionId);
+			} catch (RuntimeException e) {
+				// the session was created, do not leave it allocated in the cloud
+				logger.warn(String.format("Failed to start proxy for session: %s, deleting it. Error: %s", sessionId, e));
+				closeSilently();
+				throw e;
+			}
 		}
 		startKeepAlive(sessionId);
     }
 
+	/**
+	 * Opens the session without blocking the caller.
+	 */
+	public CompletableFuture<TestObjectPiranha> openAsync() {
+		return openAsync(OPEN_EXECUTOR);
+	}
+
+	/**
+	 * Opens the session on the given executor.
+	 */
+	public CompletableFuture<TestObjectPiranha> openAsync(Executor executor) {
+		return CompletableFuture.supplyAsync(new Supplier<TestObjectPiranha>() {
+			@Override
+			public TestObjectPiranha get() {
+				open();
+				return TestObjectPiranha.this;
+			}
+		}, executor);
+	}
+
+	/**
+	 * Opens a session for each of the capabilities, at most
+	 * <code>parallelism</code> at a time. The sessions are returned in the
+	 * order of the capabilities. If any of them fails, the ones already
+	 * opened are closed and the future completes with the first failure.
+	 */
+	public static CompletableFuture<List<TestObjectPiranha>> openAll(String baseUrl,
+			List<DesiredCapabilities> capabilities, int parallelism) {
+		final ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+				.setNameFormat("Piranha open-all-%d").setDaemon(true).build());
+
+		final List<TestObjectPiranha> sessions = new ArrayList<TestObjectPiranha>(capabilities.size());
+		CompletableFuture<?>[] opened = new CompletableFuture<?>[capabilities.size()];
+		for (int i = 0; i < opened.length; i++) {
+			TestObjectPiranha session = new TestObjectPiranha(baseUrl, capabilities.get(i));
+			sessions.add(session);
+			opened[i] = session.openAsync(executor);
+		}
+
+		final CompletableFuture<List<TestObjectPiranha>> result = new CompletableFuture<List<TestObjectPiranha>>();
+		CompletableFuture.allOf(opened).whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void ignored, Throwable failure) {
+				executor.shutdown();
+				if (failure == null) {
+					result.complete(sessions);
+					return;
+				}
+				for (TestObjectPiranha session : sessions) {
+					session.closeSilently();
+				}
+				result.completeExceptionally(failure instanceof CompletionException ? failure.getCause() : failure);
+			}
+		});
+		return result;
+	}
+
 	private void startKeepAlive(final String sessionId) {
 	    
 	    logger.info(String.format("Starting Keep Alive for session: %s , with webTarget '%s'", 
 	            sessionId , this.webTarget.getUri().toString()));
-	    
-	    Runnable runnable = new Runnable() {
-            int c = 0;
-            @Override
-            public void run() {
-                try {
-                    webTarget.path("session").path(sessionId).path("keepalive")
-                            .request(MediaType.APPLICATION_JSON)
-                            .post(Entity.entity("", MediaType.APPLICATION_JSON), String.class);
-                    c = 0;
-                } catch (Exception e) {
-                    logger.error(String.format("KeepAlive exception Occurred (try #%d) using webtarget '%s' error details are : %s",
-                            c ,  webTarget.getUri().toString(),  e));
-                    c = c + 1;
-                    if(c > 6){
-                        logger.error("Closing the testObjectSession : " + sessionId);
-                        closeSilently();
-                        throw e;
-                    }
-                }
-            }
-	    };    
-		scheduler.scheduleAtFixedRate(runnable, 10, 10, TimeUnit.SECONDS);
+
+		String keepAliveUrl = webTarget.path("session").path(sessionId).path("keepalive").getUri().toString();
+		heartbeat = HeartbeatManager.shared().register(sessionId, keepAliveUrl, new Runnable() {
+			@Override
+			public void run() {
+				closeSilently();
+			}
+		});
+	}
+
+	/**
+	 * Binds the proxy before the session ID is known, requests are only
+	 * forwarded once {@link #attachProxyServer(String)} was called.
+	 */
+	private void startProxyServer() {
+		try {
+			if (proxyConfig.isShared()) {
+				proxy = Proxy.acquireShared(proxyConfig);
+			} else {
+				proxy = new Proxy(0, proxyConfig);
+				proxy.start();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		port = proxy.getListeningPort();
 	}
 
-	private void startProxyServer(String sessionId) {
-        port = findFreePort();
+	private void attachProxyServer(String sessionId) {
+		if (proxyConfig.isShared()) {
+			proxy.register(sessionId, this.webTarget.getUri().toString());
+			basePath = Proxy.basePath(sessionId);
+
+			logger.info(String.format("Using shared Proxy Server {port:%d, path:%s} for session: %s , "
+					+ "using uri : %s", port, basePath, sessionId, this.webTarget.getUri().toString()));
+			return;
+		}
 
 	    logger.info(String.format("Starting Proxy Server {port:%d} for session: %s , "
 	            + "using uri : %s", 
@@ -176,40 +290,95 @@ public class TestObjectPiranha {
 	            sessionId , 
 	            this.webTarget.getUri().toString()));
 
-		proxy = new Proxy(port, this.webTarget.getUri().toString(), sessionId);
+		proxy.setSession(this.webTarget.getUri().toString(), sessionId);
+	}
+
+	private static void awaitProxyServer(CompletableFuture<Void> proxyStarted) {
 		try {
-			proxy.start();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+			proxyStarted.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
 		}
 	}
 
+	/**
+	 * Stops the proxy started for a session that could not be created.
+	 */
+	private void abortProxyServer(CompletableFuture<Void> proxyStarted) {
+		if (proxyStarted == null) {
+			return;
+		}
+		try {
+			proxyStarted.join();
+			stopProxyServer();
+		} catch (Throwable e) {
+			logger.warn(String.format("Failed to stop proxy after failed session creation. Error: %s", e));
+		}
+	}
+
+	private void stopProxyServer() {
+		if (proxy == null) {
+			return;
+		}
+		if (proxyConfig.isShared()) {
+			if (sessionId != null) {
+				proxy.unregister(sessionId);
+			}
+			Proxy.releaseShared();
+		} else {
+			proxy.stop();
+		}
+		proxy = null;
+	}
+
 	public String getSessionId() {
 		return sessionId;
 	}
 
-	private static int findFreePort() {
-		int port;
-		try {
-			ServerSocket socket = new ServerSocket(0);
-			port = socket.getLocalPort();
-			socket.close();
-		} catch (Exception e) {
-			port = -1;
-		}
-		return port;
+	public ProxyConfig getProxyConfig() {
+		return proxyConfig;
+	}
+
+	/**
+	 * Settings for the local proxy, must be set before {@link #open()}.
+	 */
+	public void setProxyConfig(ProxyConfig proxyConfig) {
+		this.proxyConfig = proxyConfig;
 	}
 
 	public int getPort() {
 		return port;
 	}
 
+	/**
+	 * Path prefix for requests to the proxy at {@link #getPort()}: empty for a
+	 * dedicated proxy, <code>/session/{id}</code> for a shared one.
+	 */
+	public String getBasePath() {
+		return basePath;
+	}
+
 	private void rethrow(InternalServerErrorException e) {
-		String response = e.getResponse().readEntity(String.class);
+		String response;
+		try {
+			response = e.getResponse().readEntity(String.class);
+		} finally {
+			// returns the connection to the pool
+			e.getResponse().close();
+		}
 
 		throw new RuntimeException(response);
 	}
 
+	private static void closeResponse(RuntimeException e) {
+		if (e instanceof WebApplicationException) {
+			((WebApplicationException) e).getResponse().close();
+		}
+	}
+
 	private static Map<String, Object> jsonToMap(String json) {
 		Gson gson = new Gson();
 		Type stringStringMap = new TypeToken<Map<String, Object>>() {
@@ -227,26 +396,29 @@ public class TestObjectPiranha {
 	
 	
 	/**
-	 * Boolean flag to 
+	 * Set by the first close, so that a caller's close racing the
+	 * heartbeat's closeSilently releases the proxy only once.
+	 */
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	/**
+	 * @return <code>true</code> if the session was opened and has not been
+	 *         closed, by the caller or after its keepalive failed.
 	 */
-	private boolean isCloseCalled = false;
+	public boolean isOpen() {
+		return sessionId != null && !closed.get();
+	}
 
     /**
      * Close the connection.
      */
     public void close() {
-        if (isCloseCalled) {
+        if (!closed.compareAndSet(false, true)) {
             return;
         }
 
-        if (scheduler != null) {
-            try {
-                scheduler.shutdown();
-            } catch (Throwable e) {
-                logger.warn(String.format(
-                        "Failed to shut down scheduler for session: %s. Error: %s", sessionId, e
-                                .getMessage()));
-            }
+        if (heartbeat != null) {
+            heartbeat.cancel();
         }
         try {
             logger.info(String.format("Deleting session: %s", sessionId));
@@ -257,37 +429,23 @@ public class TestObjectPiranha {
         }
 
         try {
-            if(proxy != null){
-                proxy.stop();                
-            }
+            stopProxyServer();
         } catch (Throwable e) {
             logger.warn(String.format("Failed to stop proxy for session: %s. Error: %s", sessionId,
                     e.getMessage()));
         }
-
-        try {
-            client.close();
-        } catch (Throwable e) {
-            logger.error(String.format("Failed to close the TestObject conection for session: %s",
-                    sessionId));
-        }
-        isCloseCalled = true;
     }
 
     /**
      * Close the test object connection
      */
     public void closeSilently() {
-        if (isCloseCalled) {
+        if (!closed.compareAndSet(false, true)) {
             return;
         }
 
-        if (scheduler != null) {
-            try {
-                scheduler.shutdown();
-            } catch (Throwable e) {
-                // do nothing.
-            }
+        if (heartbeat != null) {
+            heartbeat.cancel();
         }
         try {
             deleteSession();
@@ -296,16 +454,10 @@ public class TestObjectPiranha {
         }
 
         try {
-            proxy.stop();
+            stopProxyServer();
         } catch (Throwable e) {
             // do nothing
         }
-        try {
-            client.close();
-        } catch (Throwable e) {
-            // do nothing.
-        }
-        isCloseCalled = true;
     }
 
     /**
@@ -315,10 +467,23 @@ public class TestObjectPiranha {
         if (sessionId == null || sessionId.trim().length() == 0) {
             return;
         }
+        WebTarget target = webTarget.path("session/" + sessionId);
+        ControlPlaneCall call = ControlPlaneCall.start(ControlPlaneCall.Type.DELETE_SESSION, target.getUri().toString());
         try {
-            webTarget.path("session/" + sessionId).request(MediaType.APPLICATION_JSON).delete();
+            Response response = target.request(MediaType.APPLICATION_JSON).delete();
+            try {
+                call.status(response.getStatus());
+                call.end();
+            } finally {
+                response.close();
+            }
         } catch (InternalServerErrorException e) {
+            call.fail(e);
             rethrow(e);
+        } catch (RuntimeException e) {
+            call.fail(e);
+            closeResponse(e);
+            throw e;
         }
     }
 
@@ -0,0 +1,350 @@
+package org.testobject.piranha;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+
+import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Pooled HTTP client for the traffic the {@link Proxy} forwards to TestObject.
+ * By default all proxies of a JVM share {@link #shared()}, so a session
+ * rarely has to pay for a new TCP and TLS handshake.
+ */
+public class UpstreamConnectionPool implements Closeable {
+
+	private static UpstreamConnectionPool shared;
+
+	private final Logger logger = Logger.getLogger(UpstreamConnectionPool.class);
+
+	private final Settings settings;
+	private final TimedConnectionManager connectionManager;
+	private final CloseableHttpClient httpClient;
+
+	private PoolingNHttpClientConnectionManager asyncConnectionManager;
+	private CloseableHttpAsyncClient asyncHttpClient;
+	private ScheduledExecutorService asyncEvictor;
+
+	private final AtomicLong leaseCount = new AtomicLong();
+	private final AtomicLong leaseWaitNanos = new AtomicLong();
+	private final AtomicLong maxLeaseWaitNanos = new AtomicLong();
+
+	public UpstreamConnectionPool(Settings settings) {
+		this.settings = settings;
+		this.connectionManager = new TimedConnectionManager();
+		connectionManager.setMaxTotal(settings.maxTotal);
+		connectionManager.setDefaultMaxPerRoute(settings.maxPerRoute);
+		connectionManager.setValidateAfterInactivity(settings.validateAfterInactivityMillis);
+
+		this.httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setKeepAliveStrategy(new CappedKeepAliveStrategy(settings.keepAliveMillis))
+				.evictExpiredConnections()
+				.evictIdleConnections(settings.idleTimeoutMillis, TimeUnit.MILLISECONDS)
+				.build();
+	}
+
+	/**
+	 * The pool shared by all proxies of this JVM, created with default
+	 * {@link Settings} unless {@link #configureShared(Settings)} was called
+	 * first.
+	 */
+	public static synchronized UpstreamConnectionPool shared() {
+		if (shared == null) {
+			shared = new UpstreamConnectionPool(new Settings());
+		}
+		return shared;
+	}
+
+	/**
+	 * Configures the shared pool. Must be called before the first session
+	 * opens its proxy.
+	 */
+	public static synchronized void configureShared(Settings settings) {
+		if (shared != null) {
+			throw new IllegalStateException("Shared upstream connection pool is already in use");
+		}
+		shared = new UpstreamConnectionPool(settings);
+	}
+
+	public CloseableHttpClient getHttpClient() {
+		return httpClient;
+	}
+
+	/**
+	 * Non-blocking client for {@link ProxyConfig#setAsync(boolean)}. It has
+	 * its own pool with the same limits and is started on first use.
+	 */
+	public synchronized CloseableHttpAsyncClient getAsyncHttpClient() {
+		if (asyncHttpClient == null) {
+			try {
+				asyncConnectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(
+						IOReactorConfig.custom().setIoThreadCount(settings.ioThreads).setTcpNoDelay(true).build()));
+			} catch (IOReactorException e) {
+				throw new IllegalStateException(e);
+			}
+			asyncConnectionManager.setMaxTotal(settings.maxTotal);
+			asyncConnectionManager.setDefaultMaxPerRoute(settings.maxPerRoute);
+
+			asyncHttpClient = HttpAsyncClients.custom()
+					.setConnectionManager(asyncConnectionManager)
+					.setKeepAliveStrategy(new CappedKeepAliveStrategy(settings.keepAliveMillis))
+					.setThreadFactory(new ThreadFactoryBuilder().setNameFormat("Piranha upstream reactor")
+							.setDaemon(true).build())
+					.build();
+			asyncHttpClient.start();
+
+			asyncEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+					.setNameFormat("Piranha upstream evictor").setDaemon(true).build());
+			long period = Math.max(1000, settings.idleTimeoutMillis / 2);
+			asyncEvictor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					asyncConnectionManager.closeExpiredConnections();
+					asyncConnectionManager.closeIdleConnections(settings.idleTimeoutMillis, TimeUnit.MILLISECONDS);
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+		return asyncHttpClient;
+	}
+
+	/**
+	 * Opens a connection to the host of the URL in advance, including the TLS
+	 * handshake, unless the pool already has an idle one. Failures are
+	 * ignored, the connection is then opened on first use as usual.
+	 */
+	public void warmUp(String url) {
+		HttpRoute route = routeOf(URI.create(url));
+		if (connectionManager.getStats(route).getAvailable() > 0) {
+			return;
+		}
+
+		HttpClientConnection connection = null;
+		boolean reusable = false;
+		try {
+			connection = connectionManager.requestUntimed(route).get(settings.warmUpTimeoutMillis,
+					TimeUnit.MILLISECONDS);
+			if (!connection.isOpen()) {
+				HttpClientContext context = HttpClientContext.create();
+				connectionManager.connect(connection, route, (int) settings.warmUpTimeoutMillis, context);
+				connectionManager.routeComplete(connection, route, context);
+			}
+			reusable = true;
+		} catch (Exception e) {
+			logger.debug("Failed to warm up connection to " + route + ": " + e);
+		} finally {
+			if (connection != null) {
+				connectionManager.releaseConnection(connection, null, reusable ? settings.keepAliveMillis : 0,
+						TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * The route the client plans for the URL, with the default port made
+	 * explicit.
+	 */
+	private static HttpRoute routeOf(URI uri) {
+		boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+		int port = uri.getPort() > 0 ? uri.getPort() : secure ? 443 : 80;
+		return new HttpRoute(new HttpHost(uri.getHost(), port, uri.getScheme()), null, secure);
+	}
+
+	/**
+	 * Leased, available and pending connections over all routes.
+	 */
+	public PoolStats getTotalStats() {
+		return connectionManager.getTotalStats();
+	}
+
+	/**
+	 * Statistics of the non-blocking pool, or <code>null</code> if it has not
+	 * been used yet.
+	 */
+	public synchronized PoolStats getAsyncTotalStats() {
+		return asyncConnectionManager != null ? asyncConnectionManager.getTotalStats() : null;
+	}
+
+	public long getLeaseCount() {
+		return leaseCount.get();
+	}
+
+	/**
+	 * Average time callers had to wait for a connection, in milliseconds.
+	 */
+	public double getAverageLeaseWaitMillis() {
+		long count = leaseCount.get();
+		return count == 0 ? 0 : leaseWaitNanos.get() / (double) count / 1000000;
+	}
+
+	public double getMaxLeaseWaitMillis() {
+		return maxLeaseWaitNanos.get() / 1000000d;
+	}
+
+	private void recordLease(long nanos) {
+		leaseCount.incrementAndGet();
+		leaseWaitNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxLeaseWaitNanos.get())) {
+			if (maxLeaseWaitNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		httpClient.close();
+		synchronized (this) {
+			if (asyncHttpClient != null) {
+				asyncEvictor.shutdown();
+				asyncHttpClient.close();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getTotalStats() + ", leases: " + getLeaseCount() + ", avg wait: "
+				+ String.format("%.3f", getAverageLeaseWaitMillis()) + "ms, max wait: "
+				+ String.format("%.3f", getMaxLeaseWaitMillis()) + "ms";
+	}
+
+	/**
+	 * Sizing and connection life cycle of a pool.
+	 */
+	public static class Settings {
+		private int maxTotal = 200;
+		private int maxPerRoute = 200;
+		private long idleTimeoutMillis = 30 * 1000;
+		private int validateAfterInactivityMillis = 2 * 1000;
+		private long keepAliveMillis = 30 * 1000;
+		private int ioThreads = Runtime.getRuntime().availableProcessors();
+		private long warmUpTimeoutMillis = 30 * 1000;
+
+		/**
+		 * Maximum number of connections over all routes.
+		 */
+		public void setMaxTotal(int maxTotal) {
+			this.maxTotal = maxTotal;
+		}
+
+		/**
+		 * Maximum number of connections to a single host. Usually all
+		 * traffic goes to one TestObject endpoint.
+		 */
+		public void setMaxPerRoute(int maxPerRoute) {
+			this.maxPerRoute = maxPerRoute;
+		}
+
+		/**
+		 * Connections idle for longer than this are closed in the background.
+		 */
+		public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+			this.idleTimeoutMillis = idleTimeoutMillis;
+		}
+
+		/**
+		 * Connections idle for longer than this are checked for staleness
+		 * before they are leased again.
+		 */
+		public void setValidateAfterInactivityMillis(int validateAfterInactivityMillis) {
+			this.validateAfterInactivityMillis = validateAfterInactivityMillis;
+		}
+
+		/**
+		 * Upper bound for keeping a connection alive, used as well if the
+		 * server does not send a <code>Keep-Alive</code> timeout.
+		 */
+		public void setKeepAliveMillis(long keepAliveMillis) {
+			this.keepAliveMillis = keepAliveMillis;
+		}
+
+		/**
+		 * Number of I/O dispatcher threads of the non-blocking client.
+		 */
+		public void setIoThreads(int ioThreads) {
+			this.ioThreads = ioThreads;
+		}
+
+		/**
+		 * Connect timeout of {@link UpstreamConnectionPool#warmUp(String)}.
+		 */
+		public void setWarmUpTimeoutMillis(long warmUpTimeoutMillis) {
+			this.warmUpTimeoutMillis = warmUpTimeoutMillis;
+		}
+	}
+
+	private static class CappedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+		private final long maxKeepAliveMillis;
+
+		CappedKeepAliveStrategy(long maxKeepAliveMillis) {
+			this.maxKeepAliveMillis = maxKeepAliveMillis;
+		}
+
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			return duration > 0 ? Math.min(duration, maxKeepAliveMillis) : maxKeepAliveMillis;
+		}
+	}
+
+	/**
+	 * Measures how long requests wait for a pooled connection.
+	 */
+	private class TimedConnectionManager extends PoolingHttpClientConnectionManager {
+		ConnectionRequest requestUntimed(HttpRoute route) {
+			return super.requestConnection(route, null);
+		}
+
+		@Override
+		public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+			final ConnectionRequest request = super.requestConnection(route, state);
+			return new ConnectionRequest() {
+				@Override
+				public HttpClientConnection get(long timeout, TimeUnit tunit) throws InterruptedException,
+						ExecutionException, ConnectionPoolTimeoutException {
+					long start = System.nanoTime();
+					try {
+						return request.get(timeout, tunit);
+					} finally {
+						recordLease(System.nanoTime() - start);
+					}
+				}
+
+				@Override
+				public boolean cancel() {
+					return request.cancel();
+				}
+			};
+		}
+	}
+
+}
@@ -0,0 +1,251 @@
+package org.testobject.piranha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChunkedUploadTest {
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int CHUNKS = 16;
+
+	private FlakyStorage storage;
+	private Path checkpoints;
+	private File app;
+	private String md5;
+	private ChunkedUpload.Settings settings;
+
+	@Before
+	public void start() throws IOException {
+		storage = new FlakyStorage(Files.createTempDirectory("chunked-upload-storage"));
+		storage.start();
+		checkpoints = Files.createTempDirectory("chunked-upload-checkpoints");
+
+		byte[] content = new byte[CHUNKS * CHUNK_SIZE - 100];
+		new Random(42).nextBytes(content);
+		app = Files.write(Files.createTempFile("app", ".apk"), content).toFile();
+		md5 = DigestUtils.md5Hex(content);
+
+		settings = new ChunkedUpload.Settings();
+		settings.setChunkSize(CHUNK_SIZE);
+		settings.setParallelism(1);
+		settings.setMaxAttempts(3);
+		settings.setRetryDelayMillis(1);
+		settings.setCheckpointDirectory(checkpoints);
+	}
+
+	@After
+	public void stop() {
+		storage.stop();
+	}
+
+	@Test
+	public void uploadsAndRemovesTheCheckpoint() throws IOException {
+		assertTrue(upload() > 0);
+		assertEquals(CHUNKS, storage.puts.get());
+		assertEquals(0, checkpointFiles());
+	}
+
+	@Test
+	public void resumesAnInterruptedUpload() throws IOException {
+		settings.setMaxAttempts(1);
+		storage.failAfter = 4;
+		assertUploadFails();
+		assertTrue(checkpointFiles() > 0);
+
+		storage.failAfter = Integer.MAX_VALUE;
+		storage.puts.set(0);
+		upload();
+
+		assertEquals(CHUNKS - 4, storage.puts.get());
+		assertEquals(0, checkpointFiles());
+	}
+
+	@Test
+	public void startsOverWhenTheServerDroppedTheUpload() throws IOException {
+		settings.setMaxAttempts(1);
+		storage.failAfter = 4;
+		assertUploadFails();
+
+		storage.failAfter = Integer.MAX_VALUE;
+		storage.dropUploads();
+		upload();
+
+		assertEquals(1, storage.getUploadCount());
+		assertEquals(0, checkpointFiles());
+	}
+
+	@Test
+	public void resumesOnlyAgainstTheSameStorage() throws IOException {
+		FlakyStorage other = new FlakyStorage(Files.createTempDirectory("chunked-upload-other-storage"));
+		other.start();
+		try {
+			settings.setMaxAttempts(1);
+			storage.failAfter = 4;
+			assertUploadFails();
+
+			upload(other);
+			assertEquals(CHUNKS, other.puts.get());
+			assertTrue(checkpointFiles() > 0);
+
+			storage.failAfter = Integer.MAX_VALUE;
+			storage.puts.set(0);
+			upload();
+			assertEquals(CHUNKS - 4, storage.puts.get());
+			assertEquals(0, checkpointFiles());
+		} finally {
+			other.stop();
+		}
+	}
+
+	@Test
+	public void startsOverWhenAResumedUploadIsRejected() throws IOException {
+		settings.setMaxAttempts(1);
+		storage.failAfter = 4;
+		assertUploadFails();
+
+		storage.failAfter = Integer.MAX_VALUE;
+		storage.rejectKnownUploads();
+		upload();
+
+		assertEquals(1, storage.getUploadCount());
+		assertEquals(0, checkpointFiles());
+	}
+
+	@Test
+	public void retriesServerErrors() throws IOException {
+		storage.failAfter = 0;
+		assertUploadFails();
+		assertEquals(3, storage.puts.get());
+	}
+
+	@Test
+	public void failsFastOnClientErrors() throws IOException {
+		storage.failAfter = 0;
+		storage.failure = NanoHTTPD.Response.Status.FORBIDDEN;
+		assertUploadFails();
+		assertEquals(1, storage.puts.get());
+	}
+
+	@Test
+	public void concurrentUploadsOfTheSameFileUseOwnCheckpoints() throws Exception {
+		settings.setParallelism(2);
+		int uploads = 4;
+		ExecutorService executor = Executors.newFixedThreadPool(uploads);
+		try {
+			List<Future<Integer>> appIds = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < uploads; i++) {
+				appIds.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						return upload();
+					}
+				}));
+			}
+			for (Future<Integer> appId : appIds) {
+				assertTrue(appId.get() > 0);
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		// no upload skipped chunks another one had sent
+		assertEquals(uploads * CHUNKS, storage.puts.get());
+		assertEquals(uploads, storage.getUploadCount());
+		assertEquals(0, checkpointFiles());
+	}
+
+	private int upload() throws IOException {
+		return upload(storage);
+	}
+
+	private int upload(LocalStorageServer server) throws IOException {
+		String storageUrl = "http://localhost:" + server.getListeningPort() + "/storage";
+		ControlPlaneCall call = ControlPlaneCall.start(ControlPlaneCall.Type.UPLOAD_FILE, storageUrl);
+		return new ChunkedUpload(settings).upload("key", app, false, storageUrl, md5, call);
+	}
+
+	private void assertUploadFails() {
+		try {
+			upload();
+			fail("Upload succeeded");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private int checkpointFiles() throws IOException {
+		int count = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(checkpoints)) {
+			for (@SuppressWarnings("unused")
+			Path file : files) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Answers chunks with an error once a number of them arrived. The chunks
+	 * are still stored, as when a response gets lost.
+	 */
+	static class FlakyStorage extends LocalStorageServer {
+		final AtomicInteger puts = new AtomicInteger();
+		volatile int failAfter = Integer.MAX_VALUE;
+		volatile Response.Status failure = Response.Status.INTERNAL_ERROR;
+		private final Set<String> uploads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		private final Set<String> rejected = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		FlakyStorage(Path directory) {
+			super(0, directory);
+		}
+
+		/**
+		 * Answers further requests for the uploads started so far with
+		 * <code>403</code>.
+		 */
+		void rejectKnownUploads() {
+			rejected.addAll(uploads);
+		}
+
+		@Override
+		public Response serve(IHTTPSession session) {
+			Response response = super.serve(session);
+			if (session.getMethod() != Method.PUT) {
+				return response;
+			}
+			String upload = session.getUri().substring(session.getUri().lastIndexOf('/') + 1);
+			uploads.add(upload);
+			if (rejected.contains(upload)) {
+				return new Response(Response.Status.FORBIDDEN, MIME_PLAINTEXT, "rejected");
+			}
+			if (response.getStatus() == Response.Status.NO_CONTENT && puts.incrementAndGet() > failAfter) {
+				return new Response(failure, MIME_PLAINTEXT, "failed");
+			}
+			return response;
+		}
+	}
+
+}
@@ -0,0 +1,48 @@
+package org.testobject.piranha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeviceCatalogTest {
+
+	private LocalTestObjectCloud cloud;
+	private final ControlPlaneStats stats = new ControlPlaneStats();
+
+	@Before
+	public void start() throws Exception {
+		LocalTestObjectCloud.Settings settings = new LocalTestObjectCloud.Settings();
+		settings.setDeviceCount(10);
+		cloud = new LocalTestObjectCloud(0, settings, Files.createTempDirectory("device-catalog-test"));
+		cloud.start();
+		ControlPlaneListeners.add(stats);
+	}
+
+	@After
+	public void stop() {
+		ControlPlaneListeners.remove(stats);
+		cloud.stop();
+	}
+
+	@Test
+	public void reportsDownloadsAsControlPlaneCalls() {
+		DeviceCatalog.Settings settings = new DeviceCatalog.Settings();
+		settings.setAvailabilityRefreshMillis(60 * 60 * 1000);
+		try (DeviceCatalog catalog = new DeviceCatalog(cloud.getBaseUrl(), "key", settings)) {
+			catalog.refresh();
+			catalog.refresh();
+		}
+
+		ControlPlaneStats.Totals totals = stats.get(ControlPlaneCall.Type.DEVICE_CATALOG);
+		// descriptors once, availability at least twice, one refresh may run in the background
+		assertTrue(totals.getCalls() >= 3);
+		assertEquals(0, totals.getFailures());
+		assertTrue(totals.getBytesReceived() > 0);
+	}
+
+}
@@ -0,0 +1,119 @@
+package org.testobject.piranha;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeartbeatManagerTest {
+
+	private KeepAliveServer server;
+	private UpstreamConnectionPool connectionPool;
+	private HeartbeatManager heartbeats;
+	private final List<HeartbeatManager.Heartbeat> registered = new ArrayList<HeartbeatManager.Heartbeat>();
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@Before
+	public void start() throws IOException {
+		server = new KeepAliveServer();
+		server.start();
+		connectionPool = new UpstreamConnectionPool(new UpstreamConnectionPool.Settings());
+		heartbeats = new HeartbeatManager(100, 10, 1, connectionPool);
+	}
+
+	@After
+	public void stop() throws IOException {
+		for (HeartbeatManager.Heartbeat heartbeat : registered) {
+			heartbeat.cancel();
+		}
+		release.countDown();
+		server.stop();
+		connectionPool.close();
+	}
+
+	@Test
+	public void slowExpiryDoesNotHoldUpOtherSessions() throws Exception {
+		final CountDownLatch expired = new CountDownLatch(1);
+		register("failing", url("/failing"), new Runnable() {
+			@Override
+			public void run() {
+				expired.countDown();
+				awaitRelease();
+			}
+		});
+		register("healthy", url("/healthy"), null);
+
+		assertTrue(expired.await(10, TimeUnit.SECONDS));
+		assertKeepsBeating("/healthy");
+	}
+
+	@Test
+	public void invalidUrlDoesNotStopTheTimer() throws Exception {
+		register("invalid", "not a url", null);
+		register("healthy", url("/healthy"), null);
+
+		assertKeepsBeating("/healthy");
+	}
+
+	private void register(String sessionId, String keepAliveUrl, Runnable onExpired) {
+		registered.add(heartbeats.register(sessionId, keepAliveUrl, onExpired));
+	}
+
+	private void assertKeepsBeating(String path) throws InterruptedException {
+		int before = server.count(path);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (server.count(path) < before + 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue("keepalives stopped at " + server.count(path), server.count(path) >= before + 3);
+	}
+
+	private void awaitRelease() {
+		try {
+			release.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private String url(String path) {
+		return "http://localhost:" + server.getListeningPort() + path;
+	}
+
+	/**
+	 * Counts keepalives by path and fails those to <code>/failing</code>.
+	 */
+	static class KeepAliveServer extends NanoHTTPD {
+		private final ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+
+		KeepAliveServer() {
+			super(0);
+		}
+
+		int count(String path) {
+			AtomicInteger count = counts.get(path);
+			return count == null ? 0 : count.get();
+		}
+
+		@Override
+		public Response serve(IHTTPSession session) {
+			counts.putIfAbsent(session.getUri(), new AtomicInteger());
+			counts.get(session.getUri()).incrementAndGet();
+			if (session.getUri().equals("/failing")) {
+				return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "failed");
+			}
+			return new Response(Response.Status.OK, "application/json", "{}");
+		}
+	}
+
+}
@@ -0,0 +1,44 @@
+package org.testobject.piranha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void countsValuesUpToEachBound() {
+		Histogram histogram = new Histogram(2, 4, 1);
+		for (long value : new long[] { 0, 1, 4, 5, 8, 16, 17, Long.MAX_VALUE }) {
+			histogram.record(value);
+		}
+
+		String out = write(histogram);
+		assertTrue(out, out.contains("x_bucket{a=\"b\",le=\"4.0\"} 3\n"));
+		assertTrue(out, out.contains("x_bucket{a=\"b\",le=\"8.0\"} 5\n"));
+		assertTrue(out, out.contains("x_bucket{a=\"b\",le=\"16.0\"} 6\n"));
+		assertTrue(out, out.contains("x_bucket{a=\"b\",le=\"+Inf\"} 8\n"));
+		assertTrue(out, out.contains("x_count{a=\"b\"} 8\n"));
+		assertEquals(8, histogram.getCount());
+	}
+
+	@Test
+	public void writesSumAndBoundsInUnits() {
+		Histogram histogram = Histogram.nanos();
+		histogram.record(1500000000L);
+		histogram.record(500000000L);
+
+		String out = write(histogram);
+		assertTrue(out, out.contains("x_sum{a=\"b\"} 2.0\n"));
+		assertTrue(out, out.contains("le=\"1.024E-6\"} 0\n"));
+		assertTrue(out, out.contains("le=\"+Inf\"} 2\n"));
+	}
+
+	private static String write(Histogram histogram) {
+		StringBuilder out = new StringBuilder();
+		histogram.write(out, "x", "a=\"b\"");
+		return out.toString();
+	}
+
+}
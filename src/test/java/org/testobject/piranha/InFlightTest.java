@@ -0,0 +1,131 @@
+package org.testobject.piranha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class InFlightTest {
+
+	private final InFlight<String> inFlight = new InFlight<String>();
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final AtomicInteger calls = new AtomicInteger();
+	private final CountDownLatch started = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@After
+	public void stop() {
+		release.countDown();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void coalescesConcurrentCalls() throws Exception {
+		Future<String> first = run("key", blocking("result"));
+		Future<String> second = awaitStartedThenRun("key", blocking("other"));
+
+		release.countDown();
+		assertEquals("result", first.get(10, TimeUnit.SECONDS));
+		assertEquals("result", second.get(10, TimeUnit.SECONDS));
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void doesNotKeepResults() throws Exception {
+		release.countDown();
+		assertEquals("a", inFlight.run("key", blocking("a")));
+		assertEquals("b", inFlight.run("key", blocking("b")));
+		assertEquals(2, calls.get());
+		assertEquals(0, inFlight.size());
+	}
+
+	@Test
+	public void passesFailuresToWaiters() throws Exception {
+		final IllegalStateException failure = new IllegalStateException("failed");
+		Future<String> first = run("key", new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				started.countDown();
+				release.await();
+				throw failure;
+			}
+		});
+		Future<String> second = awaitStartedThenRun("key", blocking("other"));
+
+		release.countDown();
+		assertSame(failure, causeOf(first));
+		assertSame(failure, causeOf(second));
+	}
+
+	@Test
+	public void releasesWaitersWhenTheWorkThrowsAnError() throws Exception {
+		Future<String> first = run("key", new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				started.countDown();
+				release.await();
+				throw new AssertionError("failed");
+			}
+		});
+		Future<String> second = awaitStartedThenRun("key", blocking("other"));
+
+		release.countDown();
+		causeOf(first);
+		causeOf(second);
+	}
+
+	private Callable<String> blocking(final String result) {
+		return new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				calls.incrementAndGet();
+				started.countDown();
+				release.await();
+				return result;
+			}
+		};
+	}
+
+	private Future<String> run(final String key, final Callable<String> work) {
+		return executor.submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return inFlight.run(key, work);
+			}
+		});
+	}
+
+	/**
+	 * Starts a second call once the first one runs, and waits until it
+	 * joined the first.
+	 */
+	private Future<String> awaitStartedThenRun(String key, Callable<String> work) throws InterruptedException {
+		started.await();
+		Future<String> future = run(key, work);
+		// the second caller cannot be observed waiting, give it time to join
+		Thread.sleep(100);
+		return future;
+	}
+
+	private static Throwable causeOf(Future<String> future) throws Exception {
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail("Call succeeded");
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+	}
+
+}
@@ -0,0 +1,265 @@
+package org.testobject.piranha;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Local stand-in for the TestObject app storage, for testing uploads without
+ * the cloud. Serves the endpoints {@link TestObjectApi} uses below
+ * <code>.../storage/</code>: the app lookup, the single request upload and
+ * the {@link ChunkedUpload} protocol. Chunk requests can be failed at random
+ * with {@link #setChunkFailureRate(double)}.
+ */
+public class LocalStorageServer extends NanoHTTPD {
+
+	private static final String STORAGE = "/storage/";
+
+	private final Path directory;
+	private final ConcurrentMap<String, Integer> appIds = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentMap<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+	private final AtomicInteger nextAppId = new AtomicInteger(1);
+	private final AtomicInteger uploadCount = new AtomicInteger();
+	private final AtomicInteger chunkCount = new AtomicInteger();
+	private volatile double chunkFailureRate;
+
+	/**
+	 * @param directory
+	 *            where uploads in progress are written to
+	 */
+	public LocalStorageServer(int port, Path directory) {
+		super(port);
+		this.directory = directory;
+	}
+
+	/**
+	 * Fraction of chunk requests answered with an error after their body was
+	 * received.
+	 */
+	public void setChunkFailureRate(double chunkFailureRate) {
+		this.chunkFailureRate = chunkFailureRate;
+	}
+
+	/**
+	 * @return apps completely uploaded, in one request or in chunks.
+	 */
+	public int getUploadCount() {
+		return uploadCount.get();
+	}
+
+	/**
+	 * @return chunks received, including failed ones.
+	 */
+	public int getChunkCount() {
+		return chunkCount.get();
+	}
+
+	/**
+	 * Drops all uploads in progress, as a server restart would.
+	 */
+	public void dropUploads() throws IOException {
+		for (String id : uploads.keySet()) {
+			Upload upload = uploads.remove(id);
+			if (upload != null) {
+				Files.deleteIfExists(upload.file);
+			}
+		}
+	}
+
+	@Override
+	public Response serve(IHTTPSession session) {
+		String uri = session.getUri();
+		int storage = uri.indexOf(STORAGE);
+		if (storage < 0) {
+			return text(Response.Status.NOT_FOUND, "Not found: " + uri);
+		}
+		String path = uri.substring(storage + STORAGE.length());
+
+		try {
+			if (session.getMethod() == Method.GET && path.equals("app")) {
+				return findApp(session.getParms().get("appIdentifier"));
+			} else if (session.getMethod() == Method.POST && path.equals("upload")) {
+				return upload(session);
+			} else if (session.getMethod() == Method.POST && path.equals(ChunkedUpload.PATH)) {
+				return startUpload(session);
+			} else if (path.startsWith(ChunkedUpload.PATH + "/")) {
+				String upload = path.substring(ChunkedUpload.PATH.length() + 1);
+				if (session.getMethod() == Method.PUT) {
+					return receiveChunk(session, upload);
+				} else if (session.getMethod() == Method.POST && upload.endsWith("/complete")) {
+					return completeUpload(upload.substring(0, upload.length() - "/complete".length()));
+				}
+			}
+			return text(Response.Status.NOT_FOUND, "Not found: " + uri);
+		} catch (IOException e) {
+			return text(Response.Status.INTERNAL_ERROR, e.toString());
+		}
+	}
+
+	private Response findApp(String md5) {
+		Integer appId = md5 == null ? null : appIds.get(md5);
+		return new Response(Response.Status.OK, "application/json", appId == null ? "[]" : "[{\"id\":" + appId
+				+ "}]");
+	}
+
+	private Response upload(IHTTPSession session) throws IOException {
+		MessageDigest digest = DigestUtils.getMd5Digest();
+		long remaining = session.getBodySize();
+		byte[] buffer = new byte[64 * 1024];
+		InputStream in = session.getInputStream();
+		while (remaining > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read < 0) {
+				break;
+			}
+			digest.update(buffer, 0, read);
+			remaining -= read;
+		}
+		return register(session.getHeaders().get("app-identifier"), Hex.encodeHexString(digest.digest()));
+	}
+
+	private Response startUpload(IHTTPSession session) throws IOException {
+		Map<String, String> headers = session.getHeaders();
+		String md5 = headers.get("app-identifier");
+		String length = headers.get("upload-length");
+		if (md5 == null || length == null) {
+			return text(Response.Status.BAD_REQUEST, "App-Identifier and Upload-Length are required");
+		}
+
+		Files.createDirectories(directory);
+		String id = UUID.randomUUID().toString();
+		uploads.put(id, new Upload(md5, Long.parseLong(length), directory.resolve(id + ".part")));
+		return text(Response.Status.CREATED, id);
+	}
+
+	private Response receiveChunk(IHTTPSession session, String id) throws IOException {
+		Upload upload = uploads.get(id);
+		if (upload == null) {
+			return text(Response.Status.NOT_FOUND, "Unknown upload: " + id);
+		}
+		chunkCount.incrementAndGet();
+
+		// Content-Range: bytes first-last/length
+		String range = session.getHeaders().get("content-range");
+		if (range == null || !range.startsWith("bytes ")) {
+			return text(Response.Status.BAD_REQUEST, "Content-Range is required");
+		}
+		int dash = range.indexOf('-');
+		int slash = range.indexOf('/');
+		long first = Long.parseLong(range.substring("bytes ".length(), dash));
+		long last = Long.parseLong(range.substring(dash + 1, slash));
+		if (last - first + 1 != session.getBodySize() || last >= upload.length) {
+			return text(Response.Status.RANGE_NOT_SATISFIABLE, "Invalid range: " + range);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		InputStream in = session.getInputStream();
+		try (FileChannel channel = FileChannel.open(upload.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			long position = first;
+			while (position <= last) {
+				int read = in.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), last - position + 1));
+				if (read < 0) {
+					return text(Response.Status.BAD_REQUEST, "Incomplete chunk");
+				}
+				buffer.limit(read);
+				buffer.position(0);
+				while (buffer.hasRemaining()) {
+					position += channel.write(buffer, position);
+				}
+			}
+		}
+
+		if (ThreadLocalRandom.current().nextDouble() < chunkFailureRate) {
+			return text(Response.Status.INTERNAL_ERROR, "Injected failure");
+		}
+		upload.received(first, last);
+		return text(Response.Status.NO_CONTENT, "");
+	}
+
+	private Response completeUpload(String id) throws IOException {
+		Upload upload = uploads.get(id);
+		if (upload == null) {
+			return text(Response.Status.NOT_FOUND, "Unknown upload: " + id);
+		}
+		if (!upload.isComplete()) {
+			return text(Response.Status.BAD_REQUEST, "Upload incomplete: " + id);
+		}
+
+		String md5 = FingerprintCache.hash(upload.file.toFile());
+		Response response = register(upload.md5, md5);
+		uploads.remove(id);
+		Files.deleteIfExists(upload.file);
+		return response;
+	}
+
+	private Response register(String identifier, String md5) {
+		if (identifier != null && !identifier.equals(md5)) {
+			return text(Response.Status.BAD_REQUEST, "App-Identifier " + identifier + " does not match content " + md5);
+		}
+		Integer appId = appIds.get(md5);
+		if (appId == null) {
+			Integer created = nextAppId.getAndIncrement();
+			appId = appIds.putIfAbsent(md5, created);
+			if (appId == null) {
+				appId = created;
+			}
+		}
+		uploadCount.incrementAndGet();
+		return text(Response.Status.OK, String.valueOf(appId));
+	}
+
+	private static Response text(Response.Status status, String text) {
+		return new Response(status, MIME_PLAINTEXT, text);
+	}
+
+	private static class Upload {
+		private final String md5;
+		private final long length;
+		private final Path file;
+		/**
+		 * Received byte ranges, first to last, merged when they touch.
+		 */
+		private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+
+		Upload(String md5, long length, Path file) {
+			this.md5 = md5;
+			this.length = length;
+			this.file = file;
+		}
+
+		synchronized void received(long first, long last) {
+			Map.Entry<Long, Long> before = ranges.floorEntry(first);
+			if (before != null && before.getValue() >= first - 1) {
+				first = before.getKey();
+				last = Math.max(last, before.getValue());
+			}
+			Map.Entry<Long, Long> after;
+			while ((after = ranges.ceilingEntry(first)) != null && after.getKey() <= last + 1) {
+				last = Math.max(last, after.getValue());
+				ranges.remove(after.getKey());
+			}
+			ranges.put(first, last);
+		}
+
+		synchronized boolean isComplete() {
+			Map.Entry<Long, Long> first = ranges.firstEntry();
+			return length == 0 || (ranges.size() == 1 && first.getKey() == 0 && first.getValue() == length - 1);
+		}
+	}
+
+}
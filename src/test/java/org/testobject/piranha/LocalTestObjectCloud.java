@@ -0,0 +1,409 @@
+package org.testobject.piranha;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.testobject.piranha.TestObjectDevice.DeviceContainer;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Local stand-in for the TestObject cloud, for running {@link TestObjectPiranha}
+ * and {@link TestObjectApi} without <code>app.testobject.com</code>, e.g. in
+ * load tests. Serves below {@link #getBaseUrl()}:
+ * <ul>
+ * <li><code>piranha</code> and <code>piranha2</code> sessions: creation,
+ * keepalive, JSON-RPC commands and deletion</li>
+ * <li>the device descriptors, with <code>ETag</code> support</li>
+ * <li><code>storage</code>, see {@link LocalStorageServer}</li>
+ * </ul>
+ * Every endpoint answers after a delay drawn from its {@link Latency} and
+ * fails with the configured probability. Session creation additionally
+ * waits for the device to boot. Delayed responses do not occupy a thread, so
+ * the server runs in non-blocking mode by default.
+ */
+public class LocalTestObjectCloud extends NanoHTTPD {
+
+	public enum Endpoint {
+		SESSION, KEEPALIVE, COMMAND, DELETE, DESCRIPTORS, STORAGE
+	}
+
+	private static final String API = "/api/";
+	private static final String SESSION = "session";
+	private static final String DESCRIPTORS = "rest/descriptors/descriptors-api";
+	private static final String AVAILABLE_DESCRIPTORS = "rest/descriptors/availableDescriptors-api";
+	private static final String STORAGE = "storage/";
+	private static final String MIME_JSON = "application/json";
+
+	private final Settings settings;
+	private final LocalStorageServer storage;
+	private final ScheduledExecutorService timer;
+	private final Set<String> sessions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Map<Endpoint, AtomicLong> requests = new EnumMap<Endpoint, AtomicLong>(Endpoint.class);
+	private final Map<Endpoint, AtomicLong> injectedFailures = new EnumMap<Endpoint, AtomicLong>(Endpoint.class);
+	private final String descriptors;
+	private final String availableDescriptors;
+	private final String descriptorsETag;
+
+	/**
+	 * @param storageDirectory
+	 *            where app uploads in progress are written to
+	 */
+	public LocalTestObjectCloud(int port, Settings settings, Path storageDirectory) {
+		super(port);
+		this.settings = settings;
+		this.storage = new LocalStorageServer(0, storageDirectory);
+		this.timer = Executors.newScheduledThreadPool(settings.timerThreads, new ThreadFactoryBuilder()
+				.setNameFormat("LocalTestObjectCloud timer-%d").setDaemon(true).build());
+		for (Endpoint endpoint : Endpoint.values()) {
+			requests.put(endpoint, new AtomicLong());
+			injectedFailures.put(endpoint, new AtomicLong());
+		}
+
+		List<DeviceContainer> devices = devices(settings.deviceCount);
+		List<String> ids = new ArrayList<String>();
+		for (DeviceContainer device : devices) {
+			ids.add(device.id);
+		}
+		Gson gson = new Gson();
+		this.descriptors = gson.toJson(devices);
+		this.availableDescriptors = gson.toJson(ids);
+		this.descriptorsETag = "\"" + DigestUtils.md5Hex(descriptors) + "\"";
+
+		setNonBlocking(true);
+	}
+
+	/**
+	 * @return the base URL to pass to {@link TestObjectPiranha} and
+	 *         {@link TestObjectApi}, once started.
+	 */
+	public String getBaseUrl() {
+		return "http://localhost:" + getListeningPort() + API;
+	}
+
+	/**
+	 * The app storage, e.g. for its upload counters.
+	 */
+	public LocalStorageServer getStorage() {
+		return storage;
+	}
+
+	/**
+	 * @return sessions created and not deleted yet.
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	public long getRequestCount(Endpoint endpoint) {
+		return requests.get(endpoint).get();
+	}
+
+	public long getInjectedFailureCount(Endpoint endpoint) {
+		return injectedFailures.get(endpoint).get();
+	}
+
+	@Override
+	public void stop() {
+		super.stop();
+		timer.shutdownNow();
+	}
+
+	@Override
+	public void serveAsync(IHTTPSession session, ResponseCallback callback) {
+		String uri = session.getUri();
+		int api = uri.indexOf(API);
+		String path = api < 0 ? uri.substring(1) : uri.substring(api + API.length());
+		String[] segments = path.split("/");
+
+		Endpoint endpoint = endpoint(session.getMethod(), path, segments);
+		if (endpoint == null) {
+			callback.respond(notFound(uri));
+			return;
+		}
+		requests.get(endpoint).incrementAndGet();
+
+		Response response;
+		if (ThreadLocalRandom.current().nextDouble() < settings.getFailureRate(endpoint)) {
+			injectedFailures.get(endpoint).incrementAndGet();
+			response = new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Injected failure on " + endpoint);
+		} else {
+			switch (endpoint) {
+			case SESSION:
+				response = createSession();
+				break;
+			case KEEPALIVE:
+				response = keepAlive(segments[2]);
+				break;
+			case COMMAND:
+				response = command(segments[2], session.readBody());
+				break;
+			case DELETE:
+				response = deleteSession(segments[2]);
+				break;
+			case DESCRIPTORS:
+				response = path.equals(DESCRIPTORS) ? conditional(session, descriptors) : new Response(
+						Response.Status.OK, MIME_JSON, availableDescriptors);
+				break;
+			default:
+				response = storage.serve(session);
+			}
+		}
+
+		long delay = settings.getLatency(endpoint).nextMillis();
+		if (endpoint == Endpoint.SESSION) {
+			delay += settings.bootDelay.nextMillis();
+		}
+		respondLater(callback, response, delay);
+	}
+
+	private static Endpoint endpoint(Method method, String path, String[] segments) {
+		if (path.startsWith(STORAGE)) {
+			return Endpoint.STORAGE;
+		}
+		if (path.equals(DESCRIPTORS) || path.equals(AVAILABLE_DESCRIPTORS)) {
+			return Endpoint.DESCRIPTORS;
+		}
+		if (segments.length < 2 || !(segments[0].equals("piranha") || segments[0].equals("piranha2"))
+				|| !segments[1].equals(SESSION)) {
+			return null;
+		}
+		if (segments.length == 2 && method == Method.POST) {
+			return Endpoint.SESSION;
+		} else if (segments.length == 4 && segments[3].equals("keepalive")) {
+			return Endpoint.KEEPALIVE;
+		} else if (segments.length == 3 && method == Method.DELETE) {
+			return Endpoint.DELETE;
+		} else if (segments.length == 3 && method == Method.POST) {
+			return Endpoint.COMMAND;
+		}
+		return null;
+	}
+
+	private void respondLater(final ResponseCallback callback, final Response response, long delayMillis) {
+		if (delayMillis <= 0) {
+			callback.respond(response);
+			return;
+		}
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				callback.respond(response);
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private Response createSession() {
+		String id = UUID.randomUUID().toString();
+		sessions.add(id);
+
+		JsonObject json = new JsonObject();
+		json.addProperty("sessionId", id);
+		json.addProperty("testLiveViewUrl", "https://app.testobject.com/#/local/live/" + id);
+		json.addProperty("testReportUrl", "https://app.testobject.com/#/local/report/" + id);
+		return new Response(Response.Status.OK, MIME_JSON, json.toString());
+	}
+
+	private Response keepAlive(String id) {
+		if (!sessions.contains(id)) {
+			return notFound(id);
+		}
+		return new Response(Response.Status.OK, MIME_JSON, "");
+	}
+
+	private Response deleteSession(String id) {
+		if (!sessions.remove(id)) {
+			return notFound(id);
+		}
+		return new Response(Response.Status.OK, MIME_JSON, "");
+	}
+
+	/**
+	 * Answers a JSON-RPC request with a result of
+	 * {@link Settings#setCommandResponseSize(int)} characters.
+	 */
+	private Response command(String id, String body) {
+		if (!sessions.contains(id)) {
+			return notFound(id);
+		}
+
+		JsonElement requestId;
+		try {
+			requestId = new JsonParser().parse(body).getAsJsonObject().get("id");
+		} catch (JsonParseException | IllegalStateException e) {
+			return new Response(Response.Status.OK, "application/json-rpc",
+					"{\"jsonrpc\":\"2.0\",\"error\":{\"code\":-32700,\"message\":\"Parse error\"},\"id\":null}");
+		}
+
+		JsonObject response = new JsonObject();
+		response.addProperty("jsonrpc", "2.0");
+		response.addProperty("result", settings.commandResult);
+		response.add("id", requestId);
+		return new Response(Response.Status.OK, "application/json-rpc", response.toString());
+	}
+
+	private Response conditional(IHTTPSession session, String body) {
+		if (descriptorsETag.equals(session.getHeader("if-none-match"))) {
+			return new Response(Response.Status.NOT_MODIFIED, MIME_JSON, (String) null);
+		}
+		Response response = new Response(Response.Status.OK, MIME_JSON, body);
+		response.addHeader("ETag", descriptorsETag);
+		return response;
+	}
+
+	private static Response notFound(String what) {
+		return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not found: " + what);
+	}
+
+	private static List<DeviceContainer> devices(int count) {
+		List<DeviceContainer> devices = new ArrayList<DeviceContainer>(count);
+		for (int i = 0; i < count; i++) {
+			DeviceContainer device = new DeviceContainer();
+			boolean ios = i % 3 == 2;
+			device.id = (ios ? "iPhone_" : "Android_") + i + "_real";
+			device.name = (ios ? "iPhone " : "Android device ") + i;
+			device.os = ios ? TestObjectDevice.OS.IOS : TestObjectDevice.OS.ANDROID;
+			device.apiLevel = ios ? 0 : 16 + i % 10;
+			device.osVersion = ios ? (8 + i % 3) + ".0" : "4." + (i % 5);
+			device.screenSize = 4.0 + (i % 7) * 0.5;
+			devices.add(device);
+		}
+		return devices;
+	}
+
+	/**
+	 * Distribution of response delays in milliseconds.
+	 */
+	public static abstract class Latency {
+
+		public abstract long nextMillis();
+
+		public static Latency none() {
+			return fixed(0);
+		}
+
+		public static Latency fixed(final long millis) {
+			return new Latency() {
+				@Override
+				public long nextMillis() {
+					return millis;
+				}
+			};
+		}
+
+		public static Latency uniform(final long minMillis, final long maxMillis) {
+			return new Latency() {
+				@Override
+				public long nextMillis() {
+					return minMillis + (long) (ThreadLocalRandom.current().nextDouble() * (maxMillis - minMillis));
+				}
+			};
+		}
+
+		/**
+		 * Log-normal delays, the usual shape of service latencies: most
+		 * around the median with a long tail reaching <code>p99Millis</code>
+		 * for one request in a hundred.
+		 */
+		public static Latency logNormal(final long medianMillis, long p99Millis) {
+			final double sigma = Math.log((double) p99Millis / medianMillis) / 2.326;
+			return new Latency() {
+				@Override
+				public long nextMillis() {
+					return Math.round(medianMillis * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+				}
+			};
+		}
+	}
+
+	public static class Settings {
+		private final Map<Endpoint, Latency> latencies = new EnumMap<Endpoint, Latency>(Endpoint.class);
+		private final Map<Endpoint, Double> failureRates = new EnumMap<Endpoint, Double>(Endpoint.class);
+		private Latency bootDelay = Latency.none();
+		private String commandResult = "";
+		private int deviceCount = 100;
+		private int timerThreads = 2;
+
+		public Settings() {
+			for (Endpoint endpoint : Endpoint.values()) {
+				latencies.put(endpoint, Latency.none());
+				failureRates.put(endpoint, 0.0);
+			}
+		}
+
+		public Latency getLatency(Endpoint endpoint) {
+			return latencies.get(endpoint);
+		}
+
+		public void setLatency(Endpoint endpoint, Latency latency) {
+			latencies.put(endpoint, latency);
+		}
+
+		public double getFailureRate(Endpoint endpoint) {
+			return failureRates.get(endpoint);
+		}
+
+		/**
+		 * Fraction of otherwise successful requests answered with an
+		 * internal server error.
+		 */
+		public void setFailureRate(Endpoint endpoint, double failureRate) {
+			failureRates.put(endpoint, failureRate);
+		}
+
+		/**
+		 * Time to allocate and boot a device, added to the latency of session
+		 * creation.
+		 */
+		public void setBootDelay(Latency bootDelay) {
+			this.bootDelay = bootDelay;
+		}
+
+		/**
+		 * Size of the JSON-RPC result, e.g. ~100 KB for a page source.
+		 */
+		public void setCommandResponseSize(int commandResponseSize) {
+			StringBuilder result = new StringBuilder(commandResponseSize);
+			for (int i = 0; i < commandResponseSize; i++) {
+				result.append('x');
+			}
+			this.commandResult = result.toString();
+		}
+
+		/**
+		 * Number of devices described by the descriptor endpoints, all of them
+		 * available. Must be set before the server is created.
+		 */
+		public void setDeviceCount(int deviceCount) {
+			this.deviceCount = deviceCount;
+		}
+
+		/**
+		 * Threads that send delayed responses. Must be set before the server
+		 * is created.
+		 */
+		public void setTimerThreads(int timerThreads) {
+			this.timerThreads = timerThreads;
+		}
+	}
+
+}
@@ -0,0 +1,325 @@
+package org.testobject.piranha;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Test;
+
+public class NanoHTTPDTest {
+
+	private EchoServer server;
+	private final AtomicInteger tempFiles = new AtomicInteger();
+
+	@After
+	public void stop() {
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void nonBlockingAnswersOversizedRequestsWith413() throws IOException {
+		start(true);
+		server.setMaxRequestSize(1024);
+
+		try (Socket socket = connect()) {
+			write(socket, "POST / HTTP/1.1\r\nContent-Length: 2147483647\r\n\r\n");
+			assertEquals(413, readResponse(socket.getInputStream()).status);
+			assertEquals(-1, socket.getInputStream().read());
+		}
+	}
+
+	@Test
+	public void blockingAnswersOversizedRequestsWith413() throws IOException {
+		start(false);
+		server.setMaxRequestSize(1024);
+
+		try (Socket socket = connect()) {
+			write(socket, "POST / HTTP/1.1\r\nContent-Length: 1025\r\n\r\n");
+			assertEquals(413, readResponse(socket.getInputStream()).status);
+		}
+	}
+
+	@Test
+	public void nonBlockingSpoolsLargeBodiesToTempFiles() throws IOException {
+		start(true);
+		byte[] body = new byte[NanoHTTPD.MEMORY_STORE_LIMIT * 4 + 123];
+		for (int i = 0; i < body.length; i++) {
+			body[i] = (byte) i;
+		}
+
+		try (Socket socket = connect()) {
+			// the next request follows the body in the same stream
+			ByteArrayOutputStream requests = new ByteArrayOutputStream();
+			requests.write(("POST /large HTTP/1.1\r\nContent-Length: " + body.length + "\r\n\r\n")
+					.getBytes(StandardCharsets.US_ASCII));
+			requests.write(body);
+			requests.write("POST /small HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc".getBytes(StandardCharsets.US_ASCII));
+			socket.getOutputStream().write(requests.toByteArray());
+
+			InputStream in = socket.getInputStream();
+			assertEquals("/large " + body.length + " " + DigestUtils.md5Hex(body), readResponse(in).body);
+			assertEquals("/small 3 " + DigestUtils.md5Hex("abc"), readResponse(in).body);
+		}
+		assertEquals(1, tempFiles.get());
+	}
+
+	@Test
+	public void nonBlockingKeepsSmallBodiesInMemory() throws IOException {
+		start(true);
+		byte[] body = new byte[NanoHTTPD.MEMORY_STORE_LIMIT];
+		Arrays.fill(body, (byte) 'x');
+
+		try (Socket socket = connect()) {
+			socket.getOutputStream().write(("POST / HTTP/1.1\r\nContent-Length: " + body.length + "\r\n\r\n")
+					.getBytes(StandardCharsets.US_ASCII));
+			socket.getOutputStream().write(body);
+			assertEquals("/ " + body.length + " " + DigestUtils.md5Hex(body), readResponse(socket.getInputStream()).body);
+		}
+		assertEquals(0, tempFiles.get());
+	}
+
+	@Test
+	public void blockingServesPipelinedGets() throws IOException {
+		start(false);
+		assertPipelinedGetsAreServed();
+	}
+
+	@Test
+	public void nonBlockingServesPipelinedGets() throws IOException {
+		start(true);
+		assertPipelinedGetsAreServed();
+	}
+
+	private void assertPipelinedGetsAreServed() throws IOException {
+		try (Socket socket = connect()) {
+			write(socket, "GET /first HTTP/1.1\r\nHost: localhost\r\n\r\nGET /second HTTP/1.1\r\nHost: localhost\r\n\r\n");
+			InputStream in = socket.getInputStream();
+			assertEquals("/first 0 " + DigestUtils.md5Hex(""), readResponse(in).body);
+			assertEquals("/second 0 " + DigestUtils.md5Hex(""), readResponse(in).body);
+		}
+	}
+
+	@Test
+	public void nonBlockingStreamsLargeResponses() throws IOException {
+		final byte[] body = new byte[4 * 1024 * 1024 + 17];
+		for (int i = 0; i < body.length; i++) {
+			body[i] = (byte) (i * 31);
+		}
+		server = new EchoServer() {
+			@Override
+			public Response serve(IHTTPSession session) {
+				Response r;
+				if (session.getUri().equals("/chunked")) {
+					r = new Response(Response.Status.OK, "application/octet-stream", new ByteArrayInputStream(body));
+					r.setChunkedTransfer(true);
+				} else {
+					r = new Response(Response.Status.OK, "application/octet-stream", new ByteArrayInputStream(body),
+							body.length);
+				}
+				return r;
+			}
+		};
+		server.setNonBlocking(true);
+		server.start();
+
+		try (Socket socket = connect()) {
+			write(socket, "GET /fixed HTTP/1.1\r\n\r\n");
+			RawResponse response = readResponse(socket.getInputStream());
+			assertEquals(200, response.status);
+			assertEquals(DigestUtils.md5Hex(body), DigestUtils.md5Hex(response.bytes));
+
+			write(socket, "GET /chunked HTTP/1.1\r\n\r\n");
+			response = readResponse(socket.getInputStream());
+			assertEquals(DigestUtils.md5Hex(body), DigestUtils.md5Hex(response.bytes));
+		}
+	}
+
+	@Test
+	public void nonBlockingWritesStreamedBodiesBeforeTheyEnd() throws Exception {
+		final int length = 1024 * 1024;
+		final CountDownLatch release = new CountDownLatch(1);
+		// half of the body is available, the rest only once the client got the first half
+		final InputStream data = new SequenceInputStream(new ByteArrayInputStream(new byte[length / 2]),
+				new InputStream() {
+					private int remaining = length / 2;
+
+					@Override
+					public int read() throws IOException {
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+						return remaining-- > 0 ? 0 : -1;
+					}
+				});
+		server = new EchoServer() {
+			@Override
+			public Response serve(IHTTPSession session) {
+				return new Response(Response.Status.OK, "application/octet-stream", data, length);
+			}
+		};
+		server.setNonBlocking(true);
+		server.start();
+
+		try (Socket socket = connect()) {
+			write(socket, "GET / HTTP/1.1\r\n\r\n");
+			InputStream in = socket.getInputStream();
+			while (!readLine(in).isEmpty()) {
+			}
+			readFully(in, length / 4);
+			release.countDown();
+			readFully(in, length - length / 4);
+		}
+	}
+
+	private void start(boolean nonBlocking) throws IOException {
+		server = new EchoServer();
+		server.setNonBlocking(nonBlocking);
+		server.setTempFileManagerFactory(new NanoHTTPD.TempFileManagerFactory() {
+			@Override
+			public NanoHTTPD.TempFileManager create() {
+				return new NanoHTTPD.DefaultTempFileManager() {
+					@Override
+					public NanoHTTPD.TempFile createTempFile() throws Exception {
+						tempFiles.incrementAndGet();
+						return super.createTempFile();
+					}
+				};
+			}
+		});
+		server.start();
+	}
+
+	Socket connect() throws IOException {
+		Socket socket = new Socket("localhost", server.getListeningPort());
+		socket.setSoTimeout(10000);
+		return socket;
+	}
+
+	static void write(Socket socket, String request) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write(request.getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+	}
+
+	/**
+	 * Reads one response with a Content-Length or in chunks.
+	 */
+	static RawResponse readResponse(InputStream in) throws IOException {
+		String statusLine = readLine(in);
+		int contentLength = 0;
+		boolean chunked = false;
+		String line;
+		while (!(line = readLine(in)).isEmpty()) {
+			int colon = line.indexOf(':');
+			String name = line.substring(0, colon);
+			if (name.equalsIgnoreCase("content-length")) {
+				contentLength = Integer.parseInt(line.substring(colon + 1).trim());
+			} else if (name.equalsIgnoreCase("transfer-encoding")) {
+				chunked = true;
+			}
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if (chunked) {
+			int size;
+			while ((size = Integer.parseInt(readLine(in), 16)) > 0) {
+				body.write(readFully(in, size));
+				readLine(in);
+			}
+			readLine(in);
+		} else {
+			body.write(readFully(in, contentLength));
+		}
+		return new RawResponse(Integer.parseInt(statusLine.split(" ")[1]), body.toByteArray());
+	}
+
+	private static byte[] readFully(InputStream in, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		for (int read = 0; read < length;) {
+			int n = in.read(bytes, read, length - read);
+			if (n < 0) {
+				throw new IOException("Connection closed after " + read + " of " + length + " bytes");
+			}
+			read += n;
+		}
+		return bytes;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0) {
+				throw new IOException("Connection closed");
+			}
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return line.toString();
+	}
+
+	static final class RawResponse {
+		final int status;
+		final byte[] bytes;
+		final String body;
+
+		RawResponse(int status, byte[] bytes) {
+			this.status = status;
+			this.bytes = bytes;
+			this.body = new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Answers with the path, size and MD5 hash of the request body.
+	 */
+	static class EchoServer extends NanoHTTPD {
+		EchoServer() {
+			super(0);
+		}
+
+		@Override
+		public Response serve(IHTTPSession session) {
+			try {
+				MessageDigest digest = DigestUtils.getMd5Digest();
+				long size = 0;
+				byte[] buffer = new byte[8192];
+				InputStream in = session.getInputStream();
+				for (long remaining = session.getBodySize(); remaining > 0;) {
+					int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (read < 0) {
+						break;
+					}
+					digest.update(buffer, 0, read);
+					size += read;
+					remaining -= read;
+				}
+				return new Response(Response.Status.OK, MIME_PLAINTEXT, session.getUri() + " " + size + " "
+						+ Hex.encodeHexString(digest.digest()));
+			} catch (IOException e) {
+				return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, e.toString());
+			}
+		}
+	}
+
+}
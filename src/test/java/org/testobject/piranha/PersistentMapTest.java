@@ -0,0 +1,83 @@
+package org.testobject.piranha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PersistentMapTest {
+
+	private Path file;
+
+	@Before
+	public void createDirectory() throws Exception {
+		file = Files.createTempDirectory("persistent-map-test").resolve("sub").resolve("map.properties");
+	}
+
+	@Test
+	public void loadsEmptyMapBeforeFirstUpdate() throws Exception {
+		assertTrue(new PersistentMap(file).load().isEmpty());
+	}
+
+	@Test
+	public void updateKeepsOtherEntries() throws Exception {
+		PersistentMap map = new PersistentMap(file);
+		map.update(entries("a", "1", "b", "2"), Collections.<String> emptyList());
+		Map<String, String> updated = new PersistentMap(file).update(entries("c", "3"), Collections.singleton("a"));
+
+		assertEquals(entries("b", "2", "c", "3"), updated);
+		assertEquals(updated, map.load());
+	}
+
+	@Test
+	public void concurrentUpdatesAreMerged() throws Exception {
+		int threads = 8;
+		final int updates = 50;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			Future<?>[] futures = new Future<?>[threads];
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				futures[t] = executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						// an instance per thread, as separate uploads would use
+						PersistentMap map = new PersistentMap(file);
+						for (int i = 0; i < updates; i++) {
+							map.update(entries(thread + "." + i, "x"), Collections.<String> emptyList());
+						}
+						return null;
+					}
+				});
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(threads * updates, new PersistentMap(file).load().size());
+		assertTrue(Files.exists(file.resolveSibling("map.properties.lock")));
+	}
+
+	private static Map<String, String> entries(String... keysAndValues) {
+		Map<String, String> map = new HashMap<String, String>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			map.put(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return map;
+	}
+
+}
@@ -0,0 +1,136 @@
+package org.testobject.piranha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.testobject.piranha.LocalTestObjectCloud.Endpoint;
+import org.testobject.piranha.LocalTestObjectCloud.Latency;
+
+public class SessionPoolTest {
+
+	private LocalTestObjectCloud cloud;
+	private SessionPool pool;
+
+	@After
+	public void stop() {
+		if (pool != null) {
+			pool.close();
+		}
+		if (cloud != null) {
+			cloud.stop();
+		}
+	}
+
+	@Test
+	public void slowClosesDoNotDelayOpening() throws Exception {
+		LocalTestObjectCloud.Settings cloudSettings = new LocalTestObjectCloud.Settings();
+		cloudSettings.setLatency(Endpoint.DELETE, Latency.fixed(3000));
+		start(cloudSettings, 1);
+		pool.prewarm(capabilities(), 1);
+		TestObjectPiranha first = pool.borrow(capabilities());
+		awaitIdle(1);
+
+		// closing the first session takes long, the replacement for the second must not wait for it
+		pool.discard(first);
+		pool.discard(pool.borrow(capabilities()));
+		long start = System.nanoTime();
+		pool.discard(pool.borrow(capabilities()));
+
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("borrow took " + millis + "ms", millis < 2000);
+	}
+
+	@Test
+	public void failedBackgroundOpensDoNotKeepBorrowersWaiting() throws Exception {
+		LocalTestObjectCloud.Settings cloudSettings = new LocalTestObjectCloud.Settings();
+		cloudSettings.setLatency(Endpoint.SESSION, Latency.fixed(300));
+		cloudSettings.setFailureRate(Endpoint.SESSION, 1.0);
+		start(cloudSettings, 1);
+		pool.prewarm(capabilities(), 1);
+
+		long start = System.nanoTime();
+		try {
+			pool.borrow(capabilities());
+			fail("Borrowed a session although every open fails");
+		} catch (RuntimeException e) {
+			// the borrower's own open failed too
+		}
+
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("borrow took " + millis + "ms", millis < 5000);
+		assertEquals(1, pool.getMisses());
+	}
+
+	@Test
+	public void concurrentReleasesKeepTheIdleLimit() throws Exception {
+		start(new LocalTestObjectCloud.Settings(), 4);
+		List<TestObjectPiranha> sessions = new ArrayList<TestObjectPiranha>();
+		for (int i = 0; i < 16; i++) {
+			sessions.add(pool.borrow(capabilities()));
+		}
+
+		final CountDownLatch go = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (final TestObjectPiranha session : sessions) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					pool.release(session);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		go.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(1, pool.getIdleCount());
+		long deadline = System.currentTimeMillis() + 10000;
+		while (cloud.getSessionCount() > 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, cloud.getSessionCount());
+	}
+
+	private void awaitIdle(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (pool.getIdleCount() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, pool.getIdleCount());
+	}
+
+	private void start(LocalTestObjectCloud.Settings cloudSettings, int openerThreads) throws Exception {
+		cloud = new LocalTestObjectCloud(0, cloudSettings, Files.createTempDirectory("session-pool-test"));
+		cloud.start();
+		SessionPool.Settings settings = new SessionPool.Settings();
+		settings.setOpenerThreads(openerThreads);
+		settings.setMaxWaitMillis(60000);
+		// maintenance, which also refills, then runs every second
+		settings.setIdleTimeoutMillis(4000);
+		pool = new SessionPool(cloud.getBaseUrl(), settings);
+	}
+
+	private static DesiredCapabilities capabilities() {
+		DesiredCapabilities capabilities = new DesiredCapabilities();
+		capabilities.setCapability("testobject_device", "Android_0_real");
+		return capabilities;
+	}
+
+}
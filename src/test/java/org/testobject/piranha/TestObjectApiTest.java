@@ -0,0 +1,52 @@
+package org.testobject.piranha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestObjectApiTest {
+
+	private LocalStorageServer storage;
+
+	@Before
+	public void start() throws Exception {
+		storage = new LocalStorageServer(0, Files.createTempDirectory("testobject-api-test")) {
+			@Override
+			public Response serve(IHTTPSession session) {
+				Response response = super.serve(session);
+				if (session.getMethod() == Method.POST && session.getUri().endsWith("/upload")) {
+					return new Response(Response.Status.FORBIDDEN, MIME_PLAINTEXT, "forbidden");
+				}
+				return response;
+			}
+		};
+		storage.start();
+	}
+
+	@After
+	public void stop() {
+		storage.stop();
+	}
+
+	@Test
+	public void uploadFailuresKeepTheirStatus() throws Exception {
+		File app = Files.write(Files.createTempFile("app", ".apk"), "app".getBytes(StandardCharsets.UTF_8)).toFile();
+		TestObjectApi api = new TestObjectApi("http://localhost:" + storage.getListeningPort() + "/api/");
+		try {
+			api.uploadApp("key", app);
+			fail("Upload succeeded");
+		} catch (WebApplicationException e) {
+			assertEquals(403, e.getResponse().getStatus());
+		}
+	}
+
+}